@@ -0,0 +1,94 @@
+package bots;
+
+import messages.BotDocumentType;
+import messages.DocumentPayload;
+import org.javatuples.Triplet;
+
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Attachments of a Telegram bot: the ones downloaded, by file_id, and the file_id of the contents
+ * already uploaded, by hash, so they can be sent again without transferring them.
+ * A file_id is valid only for the bot that received it.
+ */
+final class AttachmentCache {
+    static final String DOWNLOAD_CACHE_SIZE_KEY = "attachment-cache-size";
+    static final String FILE_ID_CACHE_SIZE_KEY = "file-id-cache-size";
+    private static final long DEFAULT_DOWNLOAD_CACHE_SIZE = 32L << 20; // bytes
+    private static final int DEFAULT_FILE_ID_CACHE_SIZE = 10000; // entries
+
+    private final long maxDownloadBytes;
+    // Map<String fileId, Triplet<DocumentPayload data, String filename, String fileExtension>>, retained
+    private final LinkedHashMap<String, Triplet<DocumentPayload, String, String>> downloads =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private long downloadBytes;
+    // Map<String hash and type, String fileId>
+    private final Map<String, String> fileIds;
+
+    AttachmentCache(Map<String, String> configs) {
+        this.maxDownloadBytes = configs.containsKey(DOWNLOAD_CACHE_SIZE_KEY)
+                ? Long.parseLong(configs.get(DOWNLOAD_CACHE_SIZE_KEY)) : DEFAULT_DOWNLOAD_CACHE_SIZE;
+        int maxFileIds = configs.containsKey(FILE_ID_CACHE_SIZE_KEY)
+                ? Integer.parseInt(configs.get(FILE_ID_CACHE_SIZE_KEY)) : DEFAULT_FILE_ID_CACHE_SIZE;
+
+        this.fileIds = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > maxFileIds;
+            }
+        };
+    }
+
+    private static String fileIdKey(DocumentPayload payload, BotDocumentType type) {
+        return type.name() + ':' + Base64.getEncoder().encodeToString(payload.getHash());
+    }
+
+    /**
+     * @return the attachment downloaded before, retained for the caller
+     */
+    synchronized Optional<Triplet<DocumentPayload, String, String>> getDownload(String fileId) {
+        Triplet<DocumentPayload, String, String> download = this.downloads.get(fileId);
+        if (null == download)
+            return Optional.empty();
+
+        download.getValue0().retain();
+        return Optional.of(download);
+    }
+
+    synchronized void putDownload(String fileId, Triplet<DocumentPayload, String, String> download) {
+        long size = download.getValue0().getSize();
+        if (size > this.maxDownloadBytes || this.downloads.containsKey(fileId))
+            return;
+
+        download.getValue0().retain();
+        this.downloads.put(fileId, download);
+        this.downloadBytes += size;
+
+        Iterator<Triplet<DocumentPayload, String, String>> eldest = this.downloads.values().iterator();
+        while (this.downloadBytes > this.maxDownloadBytes) {
+            DocumentPayload payload = eldest.next().getValue0();
+            eldest.remove();
+            this.downloadBytes -= payload.getSize();
+            payload.release();
+        }
+    }
+
+    /**
+     * @return the file_id of a content already uploaded as type
+     */
+    synchronized Optional<String> getFileId(DocumentPayload payload, BotDocumentType type) {
+        return Optional.ofNullable(this.fileIds.get(AttachmentCache.fileIdKey(payload, type)));
+    }
+
+    synchronized void putFileId(DocumentPayload payload, BotDocumentType type, String fileId) {
+        this.fileIds.put(AttachmentCache.fileIdKey(payload, type), fileId);
+    }
+
+    synchronized void removeFileId(DocumentPayload payload, BotDocumentType type) {
+        this.fileIds.remove(AttachmentCache.fileIdKey(payload, type));
+    }
+}
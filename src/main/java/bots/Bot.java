@@ -2,6 +2,7 @@ package bots;
 
 import messages.BotDocumentMessage;
 import messages.BotTextMessage;
+import models.MessageKind;
 
 import java.util.List;
 import java.util.Map;
@@ -16,7 +17,10 @@ public interface Bot {
 
     Optional<String> sendMessage(BotDocumentMessage msg, String channelTo);
 
-    void editMessage(BotTextMessage msg, String channelTo, String messageId);
+    /**
+     * @param kind what has been sent for the message, {@link MessageKind#UNKNOWN} for the old ones
+     */
+    void editMessage(BotTextMessage msg, String channelTo, String messageId, MessageKind kind);
 
     List<String> getUsers(String channel);
 
@@ -0,0 +1,118 @@
+package bots;
+
+import java.util.*;
+
+/**
+ * Users who wrote in each chat of a Telegram bot (the list can't be retrieved), with when they have been seen last.
+ * Both the chats and their users are kept in LRU order and capped, so old ones are forgotten.
+ * Nicknames and titles are interned: the same few strings come with every message.
+ */
+final class ChatPresence {
+    static final String PRESENCE_SIZE_KEY = "presence-size";
+    static final String PRESENCE_CHATS_KEY = "presence-chats";
+    static final String PRESENCE_MAX_AGE_KEY = "presence-max-age";
+    private static final int DEFAULT_PRESENCE_SIZE = 1000; // users per chat
+    private static final int DEFAULT_PRESENCE_CHATS = 10000;
+
+    private final int maxUsers;
+    private final long maxAge; // milliseconds, 0 for no limit
+    // Access ordered, the least recently active chat first
+    private final LinkedHashMap<Long, ChatUsers> chats;
+
+    ChatPresence(Map<String, String> configs) {
+        this.maxUsers = configs.containsKey(PRESENCE_SIZE_KEY)
+                ? Integer.parseInt(configs.get(PRESENCE_SIZE_KEY)) : DEFAULT_PRESENCE_SIZE;
+        this.maxAge = configs.containsKey(PRESENCE_MAX_AGE_KEY)
+                ? Long.parseLong(configs.get(PRESENCE_MAX_AGE_KEY)) * 1000 : 0;
+        int maxChats = configs.containsKey(PRESENCE_CHATS_KEY)
+                ? Integer.parseInt(configs.get(PRESENCE_CHATS_KEY)) : DEFAULT_PRESENCE_CHATS;
+
+        this.chats = new LinkedHashMap<Long, ChatUsers>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, ChatUsers> eldest) {
+                return size() > maxChats;
+            }
+        };
+    }
+
+    private static String intern(String value) {
+        return null == value ? null : value.intern();
+    }
+
+    /**
+     * Called for every message: the chat title may have changed, the user is now the most recent one.
+     *
+     * @return true if the user wasn't among the ones of the chat
+     */
+    boolean seen(long chatId, String title, String nickname) {
+        ChatUsers chat;
+        synchronized (this) {
+            chat = this.chats.get(chatId);
+            if (null == chat) {
+                chat = new ChatUsers(this.maxUsers);
+                this.chats.put(chatId, chat);
+            }
+        }
+
+        synchronized (chat) {
+            chat.title = ChatPresence.intern(title);
+            return null != nickname
+                    && null == chat.lastSeen.put(ChatPresence.intern(nickname), System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * @return the users seen in the chat, the most recent first
+     */
+    List<String> getUsers(long chatId) {
+        ChatUsers chat;
+        synchronized (this) {
+            chat = this.chats.get(chatId);
+        }
+        if (null == chat)
+            return new ArrayList<>(0);
+
+        long minLastSeen = 0 < this.maxAge ? System.currentTimeMillis() - this.maxAge : Long.MIN_VALUE;
+        synchronized (chat) {
+            // The least recently seen first, so the expired ones are removed from the start
+            Iterator<Map.Entry<String, Long>> oldest = chat.lastSeen.entrySet().iterator();
+            while (oldest.hasNext() && oldest.next().getValue() < minLastSeen)
+                oldest.remove();
+
+            List<String> users = new ArrayList<>(chat.lastSeen.keySet());
+            Collections.reverse(users);
+            return users;
+        }
+    }
+
+    /**
+     * @return the title of the chat, if it has been seen
+     */
+    Optional<String> getTitle(long chatId) {
+        ChatUsers chat;
+        synchronized (this) {
+            chat = this.chats.get(chatId);
+        }
+        if (null == chat)
+            return Optional.empty();
+
+        synchronized (chat) {
+            return Optional.ofNullable(chat.title);
+        }
+    }
+
+    private static final class ChatUsers {
+        private String title;
+        // Map<String nickname, Long lastSeen>, access ordered: a user seen again is put back at the end
+        private final LinkedHashMap<String, Long> lastSeen;
+
+        private ChatUsers(int maxUsers) {
+            this.lastSeen = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                    return size() > maxUsers;
+                }
+            };
+        }
+    }
+}
@@ -1,20 +1,21 @@
 package bots;
 
 import core.BotsController;
+import core.OrderedExecutor;
+import core.PrefixTemplate;
+import core.PresenceIndex;
+import core.UsersFormat;
 import messages.BotDocumentMessage;
 import messages.BotMessage;
 import messages.BotTextMessage;
 import models.FileStorage;
+import models.MessageKind;
 import net.engio.mbassy.listener.Handler;
-import net.engio.mbassy.listener.Invoke;
-import org.javatuples.Triplet;
-import org.kitteh.irc.client.library.Client;
 import org.kitteh.irc.client.library.element.Channel;
 import org.kitteh.irc.client.library.element.User;
 import org.kitteh.irc.client.library.event.channel.ChannelMessageEvent;
 import org.kitteh.irc.client.library.event.helper.ChannelUserListChangeEvent;
-import org.kitteh.irc.client.library.feature.AuthManager;
-import org.kitteh.irc.client.library.feature.auth.SaslPlain;
+import org.kitteh.irc.client.library.event.user.UserQuitEvent;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
@@ -27,13 +28,23 @@ public final class IrcBot implements Bot {
     private static final String USERNAME_KEY = "username";
     private static final String HOST_KEY = "host";
     private static final String PASSWORD_KEY = "password";
+    private static final String EVENT_WORKERS_KEY = "event-workers";
+    private static final String EVENT_QUEUE_SIZE_KEY = "event-queue-size";
+    private static final int DEFAULT_EVENT_WORKERS = 4;
+    private static final int DEFAULT_EVENT_QUEUE_SIZE = 100; // events waiting for each worker before a warning
+    private static final int USERS_PAGE_LENGTH = 400;
+    private static final UsersFormat USERS_FORMAT = new UsersFormat(": ", ", ", "", USERS_PAGE_LENGTH, true);
     private static final Pattern COMPILE = Pattern.compile("[\r\n]");
     private static final Pattern PATTERN = Pattern.compile("\\s+");
-    private final Collection<String> blacklist = new LinkedHashSet<>();
     private final BotsController botsController = new BotsController();
     private final ResourceBundle resourceBundle = ResourceBundle.getBundle("resources");
-    private Client client;
+    private IrcConnectionPool connections;
+    private IrcPresenceAggregator presence;
+    private OrderedExecutor eventDispatcher;
+    private int eventQueueSize;
     private String botId;
+    // message-edited parsed once, not thread safe
+    private MessageFormat editedFormat;
 
     @Override
     public boolean init(String botId, Map<String, String> configs, String[] channels) {
@@ -42,19 +53,23 @@ public final class IrcBot implements Bot {
         if (!configs.containsKey(HOST_KEY))
             return false;
 
-        client = Client.builder().nick(configs.get(USERNAME_KEY))
-                .serverHost(configs.get(HOST_KEY)).build();
-        if (configs.containsKey(PASSWORD_KEY)) {
-            AuthManager auth = client.getAuthManager();
-            auth.addProtocol(new SaslPlain(client,
-                    client.getIntendedNick(), configs.get(PASSWORD_KEY)));
-        }
+        connections = new IrcConnectionPool(configs.get(USERNAME_KEY), configs.get(HOST_KEY),
+                Optional.ofNullable(configs.get(PASSWORD_KEY)), configs);
+
+        int eventWorkers = configs.containsKey(EVENT_WORKERS_KEY)
+                ? Integer.parseInt(configs.get(EVENT_WORKERS_KEY)) : DEFAULT_EVENT_WORKERS;
+        eventQueueSize = configs.containsKey(EVENT_QUEUE_SIZE_KEY)
+                ? Integer.parseInt(configs.get(EVENT_QUEUE_SIZE_KEY)) : DEFAULT_EVENT_QUEUE_SIZE;
+        // Unbounded: the thread reading from the server never waits and no event is lost
+        eventDispatcher = new OrderedExecutor(String.format("irc-%s", botId), eventWorkers, Integer.MAX_VALUE);
 
-        client.getEventManager().registerEventListener(this);
+        editedFormat = new MessageFormat(resourceBundle.getString("message-edited"));
+        presence = new IrcPresenceAggregator(configs, resourceBundle, this::onPresenceSummary);
+        connections.registerEventListener(this);
 
         for (String channel : channels) {
             try {
-                client.addChannel(channel);
+                connections.addChannel(channel);
             } catch (IllegalArgumentException e) {
                 System.err.println(String.format("Invalid channel name '%s' on '%s'.", channel, configs.get(HOST_KEY)));
                 e.printStackTrace();
@@ -71,45 +86,51 @@ public final class IrcBot implements Bot {
         botsController.addBridge(bot, channelTo, channelFrom);
     }
 
+    private String prefix(String channelTo, BotMessage msg, String channelName) {
+        return PrefixTemplate.of(botId, channelTo).prefix(msg.getBotFrom().getId(), channelName,
+                msg.getNicknameFrom());
+    }
+
     @Override
     public Optional<String> sendMessage(BotTextMessage msg, String channelTo) {
-        String[] messagesWithoutNewline = COMPILE.split(msg.getText()); // IRC doesn't allow CR / LF
-        for (String messageToken : messagesWithoutNewline) {
-            client.sendMessage(channelTo, BotsController.messageFormatter(
-                    msg.getBotFrom().getId(), msg.getChannelFrom(),
-                    msg.getNicknameFrom(), Optional.ofNullable(messageToken)));
-        }
+        // IRC doesn't allow CR / LF
+        connections.send(channelTo, prefix(channelTo, msg, msg.getChannelFrom()), COMPILE.split(msg.getText()));
 
         // There aren't reasons to store IRC messages
         return Optional.empty();
     }
 
-    @Handler(delivery = Invoke.Asynchronously)
+    /**
+     * Runs the handler after the ones of the same channel, the channels are handled in parallel.
+     * It runs on the thread reading from the server, which must keep answering the PINGs: it never waits,
+     * the events queue up behind a slow destination and a warning is logged when they reach event-queue-size.
+     */
+    private void dispatch(String channel, Runnable handler) {
+        if (eventDispatcher.submit(channel, handler) == eventQueueSize)
+            System.err.println(String.format("%d events waiting on '%s', the last one from %s.",
+                    eventQueueSize, botId, channel));
+    }
+
+    @Handler
     private void onMessageReceived(ChannelMessageEvent message) {
+        dispatch(message.getChannel().getName(), () -> handleMessage(message));
+    }
+
+    private void handleMessage(ChannelMessageEvent message) {
         String authorNickname = message.getActor().getNick();
-        // An user is removed from the blacklist only if writes at least one message
-        this.blacklist.remove(authorNickname);
+        // An user is muted after joining until it writes at least one message
+        this.presence.unmute(authorNickname);
+        PresenceIndex.join(this, message.getChannel().getName(), authorNickname);
 
         String channelFrom = message.getChannel().getName();
         String text = message.getMessage();
 
         String[] textSpaceSplitted = PATTERN.split(text);
         if (2 == textSpaceSplitted.length &&
-                textSpaceSplitted[0].equals(client.getNick()) &&
+                connections.isOwnNick(textSpaceSplitted[0]) &&
                 "users".equals(textSpaceSplitted[1])) {
-            List<Triplet<Bot, String, List<String>>> users = botsController.askForUsers(channelFrom);
-            users.forEach(channel -> {
-                StringBuilder output = new StringBuilder();
-                output.append(channel.getValue0().getClass().getSimpleName())
-                        .append('/')
-                        .append(channel.getValue1())
-                        .append(": ");
-
-                channel.getValue2().forEach(userTo -> output.append(userTo).append(", "));
-
-                output.delete(output.length() - 2, output.length() - 1);
-                client.sendMessage(channelFrom, output.toString());
-            });
+            botsController.askForUsersPages(channelFrom, USERS_FORMAT)
+                    .forEach(page -> connections.send(channelFrom, page));
         } else {
             BotMessage msg = new BotMessage(authorNickname, channelFrom, this);
             BotTextMessage textMessage = new BotTextMessage(msg, text);
@@ -118,67 +139,62 @@ public final class IrcBot implements Bot {
         }
     }
 
-    @Handler(delivery = Invoke.Asynchronously)
+    @Handler
     public void onJoin(ChannelUserListChangeEvent event) {
+        // Quits have no channel, they are ordered among themselves
+        Optional<Channel> channelFrom = event.getAffectedChannel();
+        String channelFromName = channelFrom.isPresent() ? channelFrom.get().getName() : BotsController.EVERY_CHANNEL;
+        dispatch(channelFromName, () -> handleUserListChange(event, channelFromName));
+    }
+
+    private void handleUserListChange(ChannelUserListChangeEvent event, String channelFromName) {
         String authorNickname = event.getUser().getNick();
 
-        if (!authorNickname.equals(client.getNick())) {
-            Optional<Channel> channelFrom = event.getAffectedChannel();
+        if (!connections.isOwnNick(authorNickname)) {
             ChannelUserListChangeEvent.Change change = event.getChange();
 
-            String channelFromName;
-            if (channelFrom.isPresent())
-                channelFromName = channelFrom.get().getName();
-            else
-                channelFromName = BotsController.EVERY_CHANNEL;
-
-            if (blacklist.contains(authorNickname))
-                return;
-
-            String message;
+            // Forwarded later, together with the others of the channel
             if (0 == change.compareTo(ChannelUserListChangeEvent.Change.JOIN)) {
-                // An user is in the blacklist until it sends a message
-                this.blacklist.add(authorNickname);
-                message = MessageFormat.format(resourceBundle.getString("channel-joined"), authorNickname);
-            } else
-                message = MessageFormat.format(resourceBundle.getString(channelFrom.isPresent()
-                        ? "channel-leaved" : "server-leaved"), authorNickname);
-
-            BotMessage msg = new BotMessage(authorNickname, channelFromName, this);
-            BotTextMessage textMessage = new BotTextMessage(msg, message);
-
-            // A new, useless msg builder is passed. There aren't reasons to store IRC messages
-            botsController.sendMessage(textMessage, channelFromName, Optional.empty());
+                PresenceIndex.join(this, channelFromName, authorNickname);
+                presence.onJoin(channelFromName, authorNickname);
+            } else if (0 == change.compareTo(ChannelUserListChangeEvent.Change.LEAVE)) {
+                if (event instanceof UserQuitEvent)
+                    PresenceIndex.quit(this, authorNickname);
+                else
+                    PresenceIndex.leave(this, channelFromName, authorNickname);
+                presence.onLeave(channelFromName, authorNickname, event instanceof UserQuitEvent
+                        ? Optional.ofNullable(((UserQuitEvent) event).getMessage()) : Optional.empty());
+            } else {
+                // The old nickname isn't known here: the users are read again
+                PresenceIndex.invalidate(this);
+            }
+        } else if (BotsController.EVERY_CHANNEL.equals(channelFromName)) {
+            PresenceIndex.invalidate(this);
+        } else {
+            // The bot joined or left the channel
+            PresenceIndex.invalidate(this, channelFromName);
         }
     }
 
+    private void onPresenceSummary(String channelFrom, String summary) {
+        BotMessage msg = new BotMessage(connections.getNick(), channelFrom, this);
+        BotTextMessage textMessage = new BotTextMessage(msg, summary);
+
+        // An empty msg builder is passed. There aren't reasons to store IRC messages
+        botsController.sendMessage(textMessage, channelFrom, Optional.empty());
+    }
+
     @Override
     public Optional<String> sendMessage(BotDocumentMessage msg, String channelTo) {
         try {
-            String fileUrl = FileStorage.storeFile(msg.getDoc(), msg.getFileExtension());
+            String fileUrl = FileStorage.storeFile(msg.getPayload(), msg.getFileExtension());
+            String prefix = prefix(channelTo, msg, msg.getChannelFrom());
             if (msg.getText() != null) {
                 String[] text = COMPILE.split(msg.getText());
-
-                if (text.length == 1) {
-                    this.client.sendMessage(channelTo, BotsController.messageFormatter(
-                            msg.getBotFrom().getId(), msg.getChannelFrom(), msg.getNicknameFrom(),
-                            Optional.of(fileUrl + ' ' + text[0])));
-                } else {
-                    this.client.sendMessage(channelTo, BotsController.messageFormatter(
-                            msg.getBotFrom().getId(),
-                            msg.getChannelFrom(),
-                            msg.getNicknameFrom(),
-                            Optional.ofNullable(fileUrl)));
-                    for (String messageToken : text) {
-                        client.sendMessage(channelTo, BotsController.messageFormatter(
-                                msg.getBotFrom().getId(), msg.getChannelFrom(),
-                                msg.getNicknameFrom(), Optional.ofNullable(messageToken)));
-                    }
-                }
+                text[0] = fileUrl + ' ' + text[0];
+                connections.send(channelTo, prefix, text);
             } else {
-                this.client.sendMessage(channelTo, BotsController.messageFormatter(
-                        msg.getBotFrom().getId(), msg.getChannelFrom(),
-                        msg.getNicknameFrom(), Optional.ofNullable(fileUrl)));
+                connections.send(channelTo, prefix, new String[]{fileUrl});
             }
         } catch (URISyntaxException | IOException e) {
             System.err.println("Error while storing the doc");
@@ -190,24 +206,24 @@ public final class IrcBot implements Bot {
     }
 
     @Override
-    public void editMessage(BotTextMessage msg, String channelTo, String messageId) {
+    public void editMessage(BotTextMessage msg, String channelTo, String messageId, MessageKind kind) {
         String channelName = msg.getBotFrom().channelIdToName(msg.getChannelFrom());
         String[] messagesWithoutNewline = COMPILE.split(msg.getText()); // IRC doesn't allow CR / LF
-        for (String messageToken : messagesWithoutNewline) {
-            client.sendMessage(channelTo, BotsController.messageFormatter(
-                    msg.getBotFrom().getId(), channelName, msg.getNicknameFrom(),
-                    Optional.of(MessageFormat.format(resourceBundle.getString("message-edited"), messageToken))));
+        synchronized (editedFormat) {
+            messagesWithoutNewline[0] = editedFormat.format(new Object[]{messagesWithoutNewline[0]});
         }
+        connections.send(channelTo, prefix(channelTo, msg, channelName), messagesWithoutNewline);
     }
 
     @Override
     public List<String> getUsers(String channel) {
-        if (client.getChannel(channel).isPresent()) {
-            Channel ircChannel = client.getChannel(channel).get();
+        Optional<Channel> joinedChannel = connections.getChannel(channel);
+        if (joinedChannel.isPresent()) {
+            Channel ircChannel = joinedChannel.get();
             List<User> listOfUsers = ircChannel.getUsers();
 
             return listOfUsers.stream()
-                    .filter(user -> !user.getNick().equals(client.getNick()))
+                    .filter(user -> !connections.isOwnNick(user.getNick()))
                     .map(User::getNick)
                     .collect(Collectors.toList());
         }
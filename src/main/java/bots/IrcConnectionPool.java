@@ -0,0 +1,215 @@
+package bots;
+
+import net.engio.mbassy.listener.Handler;
+import org.kitteh.irc.client.library.Client;
+import org.kitteh.irc.client.library.element.Channel;
+import org.kitteh.irc.client.library.event.client.ClientConnectedEvent;
+import org.kitteh.irc.client.library.event.client.ClientConnectionClosedEvent;
+import org.kitteh.irc.client.library.feature.auth.SaslPlain;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The connections of an IRC bot, each channel is joined by only one of them.
+ * Every connection has its own send scheduler, so its own flood budget, for its share of the channels.
+ * <p>
+ * The channels are spread on a consistent hash ring: when a connection comes or goes only its channels move.
+ * The ring is made of the connections that connected. Until all of them connected, or for connect-timeout
+ * seconds, every connection keeps its share; then the channels of the missing ones are joined by the others
+ * and move back as soon as they connect. The channels of a connection that closes move the same way
+ * to the others until it reconnects. The lines of a channel not sent yet move with it, in order.
+ */
+final class IrcConnectionPool {
+    static final String CONNECTIONS_KEY = "connections";
+    static final String CONNECT_TIMEOUT_KEY = "connect-timeout";
+    private static final int DEFAULT_CONNECTIONS = 1;
+    private static final long DEFAULT_CONNECT_TIMEOUT = 60; // seconds
+    private static final int VIRTUAL_NODES = 64; // points of each connection on the ring
+
+    private final Client[] clients;
+    private final IrcSendScheduler[] schedulers;
+    private final boolean[] connected;
+    // Map<String channel, Integer connection>, the joined channels
+    private final Map<String, Integer> owners = new LinkedHashMap<>();
+    // Map<Integer point, Integer connection>
+    private TreeMap<Integer, Integer> ring;
+    private boolean started;
+
+    /**
+     * The connection i > 0 uses the nickname followed by i, all of them authenticate as the nickname.
+     */
+    IrcConnectionPool(String nickname, String host, Optional<String> password, Map<String, String> configs) {
+        int size = configs.containsKey(CONNECTIONS_KEY)
+                ? Math.max(1, Integer.parseInt(configs.get(CONNECTIONS_KEY))) : DEFAULT_CONNECTIONS;
+        long connectTimeout = configs.containsKey(CONNECT_TIMEOUT_KEY)
+                ? Long.parseLong(configs.get(CONNECT_TIMEOUT_KEY)) : DEFAULT_CONNECT_TIMEOUT;
+
+        this.clients = new Client[size];
+        this.schedulers = new IrcSendScheduler[size];
+        this.connected = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            Client client = Client.builder().nick(0 == i ? nickname : nickname + i)
+                    .serverHost(host).build();
+            password.ifPresent(secret -> client.getAuthManager().addProtocol(new SaslPlain(client,
+                    nickname, secret)));
+
+            this.clients[i] = client;
+            this.schedulers[i] = new IrcSendScheduler(client, configs);
+            client.getEventManager().registerEventListener(this);
+        }
+        this.ring = IrcConnectionPool.ring(this.connected, true);
+
+        if (1 < size) {
+            Thread timeout = new Thread(() -> {
+                try {
+                    TimeUnit.SECONDS.sleep(connectTimeout);
+                    this.start();
+                } catch (InterruptedException ignored) {
+                }
+            }, "irc-connect-timeout-" + nickname);
+            timeout.setDaemon(true);
+            timeout.start();
+        }
+    }
+
+    /**
+     * Spreads the hash of the names, similar names are otherwise close on the ring.
+     */
+    private static int hash(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * @param all true to include also the connections not connected
+     */
+    private static TreeMap<Integer, Integer> ring(boolean[] connected, boolean all) {
+        TreeMap<Integer, Integer> ring = new TreeMap<>();
+        for (int i = 0; i < connected.length; i++)
+            if (all || connected[i])
+                for (int point = 0; point < VIRTUAL_NODES; point++)
+                    ring.put(IrcConnectionPool.hash(i + "#" + point), i);
+
+        return ring;
+    }
+
+    private int ownerOnRing(String channel) {
+        // Channel names are case insensitive
+        Map.Entry<Integer, Integer> point = this.ring.ceilingEntry(IrcConnectionPool.hash(channel.toLowerCase(Locale.ROOT)));
+        return (null != point ? point : this.ring.firstEntry()).getValue();
+    }
+
+    private synchronized int ownerOf(String channel) {
+        Integer owner = this.owners.get(channel);
+        return null != owner ? owner : this.ownerOnRing(channel);
+    }
+
+    void registerEventListener(Object listener) {
+        for (Client client : this.clients)
+            client.getEventManager().registerEventListener(listener);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the channel name is not valid
+     */
+    synchronized void addChannel(String channel) {
+        int owner = this.ownerOnRing(channel);
+        this.clients[owner].addChannel(channel);
+        this.owners.put(channel, owner);
+    }
+
+    /**
+     * Sends a message on the connection that joined the channel, see {@link IrcSendScheduler#send(String, String, String[])}.
+     */
+    void send(String channel, String prefix, String[] fragments) {
+        List<String> rest = this.schedulers[this.ownerOf(channel)].send(channel, prefix, fragments);
+        // Moved while being queued: the rest follows the lines moved before it
+        while (!rest.isEmpty())
+            rest = this.schedulers[this.ownerOf(channel)].send(channel, rest);
+    }
+
+    void send(String channel, String text) {
+        this.send(channel, "", new String[]{text});
+    }
+
+    Optional<Channel> getChannel(String channel) {
+        return this.clients[this.ownerOf(channel)].getChannel(channel);
+    }
+
+    /**
+     * The nickname of the first connection.
+     */
+    String getNick() {
+        return this.clients[0].getNick();
+    }
+
+    boolean isOwnNick(String nickname) {
+        for (Client client : this.clients)
+            if (nickname.equals(client.getNick()))
+                return true;
+
+        return false;
+    }
+
+    @Handler
+    public void onConnected(ClientConnectedEvent event) {
+        synchronized (this) {
+            for (int i = 0; i < this.clients.length; i++)
+                if (this.clients[i] == event.getClient())
+                    this.connected[i] = true;
+
+            for (boolean isConnected : this.connected)
+                if (!isConnected && !this.started)
+                    return;
+        }
+
+        this.start();
+    }
+
+    @Handler
+    public void onConnectionClosed(ClientConnectionClosedEvent event) {
+        synchronized (this) {
+            for (int i = 0; i < this.clients.length; i++)
+                if (this.clients[i] == event.getClient())
+                    this.connected[i] = false;
+
+            if (!this.started)
+                return;
+        }
+
+        this.start();
+    }
+
+    /**
+     * Moves the channels on the ring of the connected connections.
+     */
+    private synchronized void start() {
+        this.started = true;
+
+        boolean any = false;
+        for (boolean isConnected : this.connected)
+            any |= isConnected;
+        // Nobody connected: the channels stay where they are, they are joined again on reconnect
+        if (!any)
+            return;
+        this.ring = IrcConnectionPool.ring(this.connected, false);
+
+        for (Map.Entry<String, Integer> channel : this.owners.entrySet()) {
+            int owner = this.ownerOnRing(channel.getKey());
+            if (owner != channel.getValue()) {
+                // Left before being joined again: a message isn't received twice
+                this.clients[channel.getValue()].removeChannel(channel.getKey());
+                this.schedulers[owner].moveIn(channel.getKey(),
+                        this.schedulers[channel.getValue()].moveAway(channel.getKey()));
+                this.clients[owner].addChannel(channel.getKey());
+                channel.setValue(owner);
+            }
+        }
+    }
+}
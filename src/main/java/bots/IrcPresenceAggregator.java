@@ -0,0 +1,181 @@
+package bots;
+
+import java.text.MessageFormat;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.regex.Pattern;
+
+/**
+ * Groups the joins, parts and quits of each IRC channel in a single summary every presence-window seconds,
+ * so a netsplit or a mass rejoin isn't forwarded as hundreds of messages.
+ * <p>
+ * A user who joins is muted until it writes a message, as it was before: its next joins and parts are not forwarded.
+ * The muted users are kept in a bounded LRU and forgotten after presence-mute-age seconds.
+ * Quits with two server names as message are netsplits, the users coming back soon after are a netjoin:
+ * both are only counted. Every connection of the bot sees the quit of a user they share: a user is counted once.
+ */
+final class IrcPresenceAggregator {
+    static final String PRESENCE_WINDOW_KEY = "presence-window";
+    static final String PRESENCE_MUTE_SIZE_KEY = "presence-mute-size";
+    static final String PRESENCE_MUTE_AGE_KEY = "presence-mute-age";
+    private static final long DEFAULT_PRESENCE_WINDOW = 10; // seconds
+    private static final int DEFAULT_PRESENCE_MUTE_SIZE = 5000; // users
+    private static final long DEFAULT_PRESENCE_MUTE_AGE = 86400; // seconds
+    private static final long NETJOIN_WINDOW = TimeUnit.MINUTES.toMillis(30);
+    private static final int MAX_LISTED_NICKS = 10;
+    // "irc.example.net irc2.example.net": the servers split by a netsplit
+    private static final Pattern NETSPLIT = Pattern.compile("[\\w-]+(\\.[\\w-]+)+ [\\w-]+(\\.[\\w-]+)+");
+
+    private final ResourceBundle resourceBundle;
+    private final BiConsumer<String, String> onSummary;
+    private final long window;
+    private final long muteAge;
+    private final ScheduledExecutorService scheduler;
+    // Map<String nickname, Long time>, access ordered: the least recently muted or split first
+    private final LinkedHashMap<String, Long> muted;
+    private final LinkedHashMap<String, Long> split;
+    // Changes of each channel not forwarded yet
+    private final Map<String, Summary> summaries = new HashMap<>();
+
+    /**
+     * @param onSummary called with the channel and its summary at the end of each window
+     */
+    IrcPresenceAggregator(Map<String, String> configs, ResourceBundle resourceBundle,
+                          BiConsumer<String, String> onSummary) {
+        this.resourceBundle = resourceBundle;
+        this.onSummary = onSummary;
+        this.window = configs.containsKey(PRESENCE_WINDOW_KEY)
+                ? Long.parseLong(configs.get(PRESENCE_WINDOW_KEY)) : DEFAULT_PRESENCE_WINDOW;
+        this.muteAge = TimeUnit.SECONDS.toMillis(configs.containsKey(PRESENCE_MUTE_AGE_KEY)
+                ? Long.parseLong(configs.get(PRESENCE_MUTE_AGE_KEY)) : DEFAULT_PRESENCE_MUTE_AGE);
+        int muteSize = configs.containsKey(PRESENCE_MUTE_SIZE_KEY)
+                ? Integer.parseInt(configs.get(PRESENCE_MUTE_SIZE_KEY)) : DEFAULT_PRESENCE_MUTE_SIZE;
+
+        this.muted = IrcPresenceAggregator.boundedMap(muteSize);
+        this.split = IrcPresenceAggregator.boundedMap(muteSize);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "irc-presence");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static LinkedHashMap<String, Long> boundedMap(int maxSize) {
+        return new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return true if the nickname was in the map and not older than maxAge
+     */
+    private static boolean removeIfRecent(Map<String, Long> map, String nickname, long maxAge) {
+        Long time = map.remove(nickname);
+        return null != time && time >= System.currentTimeMillis() - maxAge;
+    }
+
+    /**
+     * The user wrote a message: its joins and parts are forwarded again.
+     */
+    synchronized void unmute(String nickname) {
+        this.muted.remove(nickname);
+    }
+
+    private Summary summaryOf(String channel) {
+        Summary summary = this.summaries.get(channel);
+        if (null == summary) {
+            summary = new Summary();
+            this.summaries.put(channel, summary);
+            this.scheduler.schedule(() -> this.flush(channel), this.window, TimeUnit.SECONDS);
+        }
+
+        return summary;
+    }
+
+    synchronized void onJoin(String channel, String nickname) {
+        long now = System.currentTimeMillis();
+        if (IrcPresenceAggregator.removeIfRecent(this.split, nickname, NETJOIN_WINDOW)) {
+            this.summaryOf(channel).netjoins++;
+            return;
+        }
+
+        boolean isMuted = IrcPresenceAggregator.removeIfRecent(this.muted, nickname, this.muteAge);
+        // An user is muted until it sends a message
+        this.muted.put(nickname, now);
+        if (!isMuted)
+            this.summaryOf(channel).joined.add(nickname);
+    }
+
+    /**
+     * @param quitMessage present if the user left the server, not just the channel
+     */
+    synchronized void onLeave(String channel, String nickname, Optional<String> quitMessage) {
+        if (quitMessage.isPresent() && NETSPLIT.matcher(quitMessage.get()).matches()) {
+            this.split.put(nickname, System.currentTimeMillis());
+            Summary summary = this.summaryOf(channel);
+            summary.splits.add(nickname);
+            summary.splitServers = quitMessage.get();
+            return;
+        }
+
+        // Joined and left in the same window: nothing to say
+        Summary pending = this.summaries.get(channel);
+        if (null != pending && pending.joined.remove(nickname))
+            return;
+
+        Long mutedSince = this.muted.get(nickname);
+        if (null != mutedSince && mutedSince >= System.currentTimeMillis() - this.muteAge)
+            return;
+
+        Summary summary = this.summaryOf(channel);
+        summary.left.add(nickname);
+        summary.quit |= quitMessage.isPresent();
+    }
+
+    private String nicknames(Collection<String> nicknames) {
+        if (MAX_LISTED_NICKS >= nicknames.size())
+            return String.join(", ", nicknames);
+
+        List<String> listed = new ArrayList<>(nicknames).subList(0, MAX_LISTED_NICKS);
+        return MessageFormat.format(this.resourceBundle.getString("and-others"),
+                String.join(", ", listed), nicknames.size() - MAX_LISTED_NICKS);
+    }
+
+    private void flush(String channel) {
+        Summary summary;
+        synchronized (this) {
+            summary = this.summaries.remove(channel);
+        }
+
+        List<String> lines = new ArrayList<>(4);
+        if (!summary.joined.isEmpty())
+            lines.add(MessageFormat.format(this.resourceBundle.getString("channel-joined"),
+                    this.nicknames(summary.joined)));
+        if (!summary.left.isEmpty())
+            lines.add(MessageFormat.format(this.resourceBundle.getString(summary.quit
+                    ? "server-leaved" : "channel-leaved"), this.nicknames(summary.left)));
+        if (!summary.splits.isEmpty())
+            lines.add(MessageFormat.format(this.resourceBundle.getString("netsplit"),
+                    summary.splits.size(), summary.splitServers));
+        if (0 < summary.netjoins)
+            lines.add(MessageFormat.format(this.resourceBundle.getString("netjoin"), summary.netjoins));
+
+        if (!lines.isEmpty())
+            this.onSummary.accept(channel, String.join(System.lineSeparator(), lines));
+    }
+
+    private static final class Summary {
+        private final Set<String> joined = new LinkedHashSet<>();
+        private final Set<String> left = new LinkedHashSet<>();
+        private boolean quit;
+        private final Set<String> splits = new HashSet<>();
+        private String splitServers;
+        private int netjoins;
+    }
+}
@@ -0,0 +1,287 @@
+package bots;
+
+import models.FileStorage;
+import org.javatuples.Pair;
+import org.kitteh.irc.client.library.Client;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Output queue of an IRC connection.
+ * The fragments of a message are packed in as few PRIVMSGs as the protocol allows,
+ * long pastes become a link and lines are sent under a flood control budget.
+ * A line stays queued until it is sent, so the lines of a channel moving to another connection move with it.
+ */
+final class IrcSendScheduler {
+    static final String FLOOD_RATE_KEY = "flood-rate";
+    static final String FLOOD_BURST_KEY = "flood-burst";
+    static final String MAX_LINE_BYTES_KEY = "max-line-bytes";
+    static final String PASTE_THRESHOLD_KEY = "paste-threshold";
+    private static final double DEFAULT_FLOOD_RATE = 0.5; // lines per second
+    private static final double DEFAULT_FLOOD_BURST = 4;
+    private static final int DEFAULT_PASTE_THRESHOLD = 0; // fragments, 0 disables it
+    // RFC 1459: 512 bytes, CR LF included
+    private static final int PROTOCOL_MAX_BYTES = 512 - 2;
+    // The server relays ":nick!user@host " in front of our lines
+    private static final int HOSTMASK_MAX_BYTES = 100;
+    private static final int QUEUE_CAPACITY = 200;
+    private static final String FRAGMENTS_SEPARATOR = " | ";
+    private static final String PASTE_EXTENSION = "txt";
+
+    private final Client client;
+    private final TokenBucket floodBucket;
+    private final double floodRate;
+    private final int maxLineBytes;
+    private final int pasteThreshold;
+    // Pair<String channelTo, String line>, guarded by itself
+    private final Deque<Pair<String, String>> lines = new ArrayDeque<>();
+    // Channels moved to another connection: their lines are refused
+    private final Set<String> movedAway = new HashSet<>();
+    private final Object enqueueLock = new Object();
+    private final Thread worker;
+
+    IrcSendScheduler(Client client, Map<String, String> configs) {
+        this.client = client;
+
+        double rate = configs.containsKey(FLOOD_RATE_KEY)
+                ? Double.parseDouble(configs.get(FLOOD_RATE_KEY)) : DEFAULT_FLOOD_RATE;
+        if (0 >= rate)
+            throw new IllegalArgumentException(String.format("%s must be greater than 0, not %s", FLOOD_RATE_KEY, rate));
+        double burst = configs.containsKey(FLOOD_BURST_KEY)
+                ? Double.parseDouble(configs.get(FLOOD_BURST_KEY)) : DEFAULT_FLOOD_BURST;
+        this.floodBucket = new TokenBucket(burst, rate);
+        this.floodRate = rate;
+        this.maxLineBytes = configs.containsKey(MAX_LINE_BYTES_KEY)
+                ? Integer.parseInt(configs.get(MAX_LINE_BYTES_KEY)) : PROTOCOL_MAX_BYTES;
+        this.pasteThreshold = configs.containsKey(PASTE_THRESHOLD_KEY)
+                ? Integer.parseInt(configs.get(PASTE_THRESHOLD_KEY)) : DEFAULT_PASTE_THRESHOLD;
+
+        this.worker = new Thread(this::run, "irc-sender-" + client.getIntendedNick());
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    private static int byteLength(String text) {
+        return text.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * @return the longest prefix of text not exceeding maxBytes, cut on a whitespace if possible
+     */
+    private static String cut(String text, int maxBytes) {
+        int bytes = 0;
+        int end = 0;
+        while (end < text.length()) {
+            int codePoint = text.codePointAt(end);
+            int codePointBytes = IrcSendScheduler.byteLength(new String(Character.toChars(codePoint)));
+            if (bytes + codePointBytes > maxBytes)
+                break;
+            bytes += codePointBytes;
+            end += Character.charCount(codePoint);
+        }
+
+        if (end < text.length()) {
+            int space = text.lastIndexOf(' ', end);
+            if (0 < space)
+                end = space;
+        }
+
+        // At least a character, never half of a surrogate pair: it isn't valid UTF-8
+        if (0 == end)
+            end = Character.charCount(text.codePointAt(0));
+        else if (Character.isHighSurrogate(text.charAt(end - 1)))
+            end--;
+
+        return text.substring(0, end);
+    }
+
+    /**
+     * Bytes available for the text of a PRIVMSG sent to the channel.
+     */
+    private int lineBudget(String channelTo) {
+        int overhead = HOSTMASK_MAX_BYTES + IrcSendScheduler.byteLength("PRIVMSG " + channelTo + " :");
+        return Math.min(this.maxLineBytes, PROTOCOL_MAX_BYTES - overhead);
+    }
+
+    /**
+     * Sends a message split in fragments (IRC doesn't allow CR / LF), each PRIVMSG starts with prefix.
+     *
+     * @return the lines not queued because the channel moved to another connection, they must be sent there
+     */
+    List<String> send(String channelTo, String prefix, String[] fragments) {
+        List<String> packedLines = this.pasteThreshold > 0 && fragments.length > this.pasteThreshold
+                ? this.collapse(channelTo, prefix, fragments)
+                : this.pack(channelTo, prefix, fragments);
+
+        return this.send(channelTo, packedLines);
+    }
+
+    /**
+     * Sends lines already packed, waiting while the queue is full.
+     *
+     * @return the lines not queued because the channel moved to another connection, they must be sent there
+     */
+    List<String> send(String channelTo, List<String> packedLines) {
+        // The lines of a message aren't interleaved with the ones of another
+        synchronized (this.enqueueLock) {
+            synchronized (this.lines) {
+                try {
+                    for (int i = 0; i < packedLines.size(); i++) {
+                        while (QUEUE_CAPACITY <= this.lines.size() && !this.movedAway.contains(channelTo))
+                            this.lines.wait();
+                        if (this.movedAway.contains(channelTo))
+                            return packedLines.subList(i, packedLines.size());
+
+                        this.lines.add(Pair.with(channelTo, packedLines.get(i)));
+                        this.lines.notifyAll();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        return Collections.emptyList();
+    }
+
+    /**
+     * The channel moves to another connection: its lines not sent yet are removed and the next ones refused.
+     *
+     * @return the lines removed, in order
+     */
+    List<String> moveAway(String channel) {
+        synchronized (this.lines) {
+            this.movedAway.add(channel);
+
+            List<String> moved = new ArrayList<>();
+            for (Iterator<Pair<String, String>> iterator = this.lines.iterator(); iterator.hasNext(); ) {
+                Pair<String, String> line = iterator.next();
+                if (channel.equals(line.getValue0())) {
+                    moved.add(line.getValue1());
+                    iterator.remove();
+                }
+            }
+            this.lines.notifyAll();
+
+            return moved;
+        }
+    }
+
+    /**
+     * The channel moves to this connection, the lines removed from the previous one are sent first.
+     * They are queued even if the queue is full: the caller can't wait.
+     */
+    void moveIn(String channel, List<String> pending) {
+        synchronized (this.lines) {
+            this.movedAway.remove(channel);
+            for (String line : pending)
+                this.lines.add(Pair.with(channel, line));
+            this.lines.notifyAll();
+        }
+    }
+
+    private List<String> pack(String channelTo, String prefix, String[] fragments) {
+        int budget = this.lineBudget(channelTo) - IrcSendScheduler.byteLength(prefix);
+        List<String> output = new ArrayList<>(1);
+
+        StringBuilder line = new StringBuilder();
+        int lineBytes = 0;
+        for (String fragment : fragments) {
+            if (fragment.trim().isEmpty())
+                continue;
+
+            String rest = fragment;
+
+            while (!rest.isEmpty()) {
+                int separatorBytes = 0 == lineBytes ? 0 : FRAGMENTS_SEPARATOR.length();
+                int restBytes = IrcSendScheduler.byteLength(rest);
+                if (lineBytes + separatorBytes + restBytes <= budget) {
+                    if (0 < separatorBytes)
+                        line.append(FRAGMENTS_SEPARATOR);
+                    line.append(rest);
+                    lineBytes += separatorBytes + restBytes;
+                    break;
+                }
+
+                // It doesn't fit: close the current line and, if needed, split the fragment
+                if (0 < lineBytes) {
+                    output.add(prefix + line);
+                    line.setLength(0);
+                    lineBytes = 0;
+                } else {
+                    String head = IrcSendScheduler.cut(rest, budget);
+                    output.add(prefix + head);
+                    rest = rest.substring(head.length()).trim();
+                }
+            }
+        }
+
+        if (0 < lineBytes || output.isEmpty())
+            output.add(prefix + line);
+
+        return output;
+    }
+
+    private List<String> collapse(String channelTo, String prefix, String[] fragments) {
+        try {
+            String paste = String.join(System.lineSeparator(), fragments);
+            String url = FileStorage.storeFile(paste.getBytes(StandardCharsets.UTF_8), PASTE_EXTENSION);
+
+            String suffix = String.format(" ... (%d lines) %s", fragments.length, url);
+            int budget = this.lineBudget(channelTo) - IrcSendScheduler.byteLength(prefix + suffix);
+            String preview = 0 < budget ? IrcSendScheduler.cut(fragments[0].trim(), budget) : "";
+
+            List<String> output = new ArrayList<>(1);
+            output.add(prefix + preview + suffix);
+            return output;
+        } catch (URISyntaxException | IOException e) {
+            System.err.println("Error while storing the paste, sending it line by line");
+            e.printStackTrace();
+            return this.pack(channelTo, prefix, fragments);
+        }
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                Pair<String, String> line;
+                synchronized (this.lines) {
+                    while (this.lines.isEmpty())
+                        this.lines.wait();
+                    line = this.lines.peekFirst();
+                }
+                TimeUnit.NANOSECONDS.sleep(this.floodBucket.reserve());
+
+                synchronized (this.lines) {
+                    // Moved to another connection while waiting for the budget
+                    if (line != this.lines.peekFirst())
+                        continue;
+                    this.lines.pollFirst();
+                    this.lines.notifyAll();
+                    this.client.sendMessage(line.getValue0(), line.getValue1());
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                System.err.println("Error while sending an IRC message");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return milliseconds a new line would wait, lines already queued included
+     */
+    long getCurrentDelay() {
+        int queued;
+        synchronized (this.lines) {
+            queued = this.lines.size();
+        }
+        return TimeUnit.NANOSECONDS.toMillis(this.floodBucket.getDelay())
+                + (long) (TimeUnit.SECONDS.toMillis(queued) / this.floodRate);
+    }
+}
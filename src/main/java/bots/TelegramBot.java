@@ -1,26 +1,32 @@
 package bots;
 
 import core.BotsController;
+import core.OrderedExecutor;
+import core.PrefixTemplate;
+import core.PresenceIndex;
+import core.UsersFormat;
 import maps.OpenStreetMap;
 import messages.BotDocumentMessage;
 import messages.BotDocumentType;
 import messages.BotMessage;
 import messages.BotTextMessage;
+import messages.DocumentPayload;
 import models.MessageBuilder;
-import org.apache.commons.io.IOUtils;
+import models.MessageKind;
 import org.javatuples.Triplet;
 import org.telegram.telegrambots.ApiContextInitializer;
 import org.telegram.telegrambots.TelegramBotsApi;
 import org.telegram.telegrambots.api.methods.GetFile;
 import org.telegram.telegrambots.api.methods.send.*;
+import org.telegram.telegrambots.api.methods.updates.GetUpdates;
 import org.telegram.telegrambots.api.methods.updatingmessages.EditMessageCaption;
 import org.telegram.telegrambots.api.methods.updatingmessages.EditMessageText;
 import org.telegram.telegrambots.api.objects.*;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
 import org.telegram.telegrambots.bots.TelegramLongPollingBot;
 import org.telegram.telegrambots.exceptions.TelegramApiException;
 import org.telegram.telegrambots.exceptions.TelegramApiRequestException;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
@@ -28,70 +34,129 @@ import java.net.URL;
 import java.util.*;
 import java.util.regex.Pattern;
 
-/* TODO: implement a way not to exceed bot messages limit
-   Wait until this will be stable:
-   https://github.com/rubenlagus/TelegramBots/pull/230#issuecomment-306409017
-*/
 public final class TelegramBot extends TelegramLongPollingBot implements Bot {
     private static final String USERNAME_KEY = "username";
     private static final String TOKEN_KEY = "token";
+    private static final String UPDATES_KEY = "updates";
+    private static final String WEBHOOK_UPDATES = "webhook";
+    private static final String API_URL_KEY = "api-url";
+    private static final String DEFAULT_API_URL = "https://api.telegram.org/";
+    private static final String UPDATE_WORKERS_KEY = "update-workers";
+    private static final String UPDATE_QUEUE_SIZE_KEY = "update-queue-size";
+    private static final int DEFAULT_UPDATE_WORKERS = 4;
+    private static final int DEFAULT_UPDATE_QUEUE_SIZE = 100; // updates waiting for each worker
+    private static final int POLLING_TIMEOUT = 50; // seconds
+    private static final long POLLING_RETRY_MILLIS = 1000;
+    private static final long MAX_POLLING_RETRY_MILLIS = 60000;
+    private static final int MAX_MESSAGE_LENGTH = 4096;
+    private static final UsersFormat USERS_FORMAT = new UsersFormat(':' + System.lineSeparator(),
+            System.lineSeparator(), System.lineSeparator() + System.lineSeparator(), MAX_MESSAGE_LENGTH, false);
     private static final Pattern COMPILE = Pattern.compile("\\\\s+");
 
-    private static TelegramBotsApi telegramBotsApi;
-    // You can't retrieve users list, so it'll store users who wrote at least one time here
-    private final HashSet<String> users = new LinkedHashSet<>();
-    private final Map<Long, String> chats = new HashMap<>();
+    // Shared by all the bots receiving their updates by webhook
+    private static Optional<TelegramBotsApi> webhookServer = Optional.empty();
     private final BotsController botsController = new BotsController();
     private Map<String, String> configs = new LinkedHashMap<>(0);
+    private TelegramRateLimiter rateLimiter = new TelegramRateLimiter(configs);
+    private AttachmentCache attachmentCache = new AttachmentCache(configs);
+    // You can't retrieve users list, so it'll store users who wrote at least one time here
+    private ChatPresence presence = new ChatPresence(configs);
+    private OrderedExecutor updateDispatcher;
     private String botId;
 
-    public TelegramBot() {
-        if (telegramBotsApi == null) {
-            telegramBotsApi = new TelegramBotsApi();
+    public static void init() {
+        ApiContextInitializer.init();
+    }
+
+    /**
+     * Starts the webhook server if it is configured, it has to be called before the bots are initialized.
+     */
+    public static void initWebhook(Map<String, String> webhookConfig) {
+        try {
+            webhookServer = TelegramWebhook.fromConfig(webhookConfig);
+        } catch (TelegramApiRequestException e) {
+            System.err.println("Error starting the Telegram webhook server");
+            e.printStackTrace();
         }
     }
 
-    public static void init() {
-        ApiContextInitializer.init();
+    private String getApiUrl() {
+        return configs.getOrDefault(API_URL_KEY, DEFAULT_API_URL).replaceFirst("/*$", "/");
     }
 
     @Override
     public boolean init(String botId, Map<String, String> configs, String[] channels) {
         this.configs = configs;
+        this.rateLimiter = new TelegramRateLimiter(configs);
+        this.attachmentCache = new AttachmentCache(configs);
+        this.presence = new ChatPresence(configs);
+
+        int updateWorkers = configs.containsKey(UPDATE_WORKERS_KEY)
+                ? Integer.parseInt(configs.get(UPDATE_WORKERS_KEY)) : DEFAULT_UPDATE_WORKERS;
+        int updateQueueSize = configs.containsKey(UPDATE_QUEUE_SIZE_KEY)
+                ? Integer.parseInt(configs.get(UPDATE_QUEUE_SIZE_KEY)) : DEFAULT_UPDATE_QUEUE_SIZE;
+        this.updateDispatcher = new OrderedExecutor(String.format("telegram-%s", botId),
+                updateWorkers, updateQueueSize);
+        this.botId = botId;
+        getOptions().setBaseUrl(getApiUrl() + "bot");
 
+        if (WEBHOOK_UPDATES.equals(configs.get(UPDATES_KEY))) {
+            if (!webhookServer.isPresent()) {
+                System.err.println(String.format("'%s' needs the telegram-webhook config", botId));
+                return false;
+            }
+
+            DefaultBotOptions webhookOptions = new DefaultBotOptions();
+            webhookOptions.setBaseUrl(getOptions().getBaseUrl());
+            try {
+                webhookServer.get().registerBot(new TelegramWebhook(this, webhookOptions));
+            } catch (TelegramApiRequestException e) {
+                e.printStackTrace();
+                return false;
+            }
+
+            return true;
+        }
+
+        // The updates are polled here and not by a TelegramBotsApi session: it can't be paused when the workers are busy
         try {
-            telegramBotsApi.registerBot(this);
+            clearWebhook();
         } catch (TelegramApiRequestException e) {
             e.printStackTrace();
             return false;
         }
 
-        this.botId = botId;
+        Thread poller = new Thread(this::poll, String.format("telegram-%s-polling", botId));
+        poller.setDaemon(true);
+        poller.start();
 
         return true;
     }
 
     /**
-     * @return a list of {@literal Triplet<byte[] data, String filename, String fileExtension>}
+     * @return a list of {@literal Triplet<DocumentPayload data, String filename, String fileExtension>},
+     * the caller has to release the payload
      */
-    private Triplet<byte[], String, String> downloadFromFileId(String fileId) throws TelegramApiException, IOException {
+    private Triplet<DocumentPayload, String, String> downloadFromFileId(String fileId)
+            throws TelegramApiException, IOException {
         GetFile getFile = new GetFile();
         getFile.setFileId(fileId);
 
         File file = getFile(getFile);
-        URL fileUrl = new URL(file.getFileUrl(configs.get(TOKEN_KEY)));
+        URL fileUrl = new URL(String.format("%sfile/bot%s/%s", getApiUrl(), configs.get(TOKEN_KEY), file.getFilePath()));
         HttpURLConnection httpConn = (HttpURLConnection) fileUrl.openConnection();
-        InputStream inputStream = httpConn.getInputStream();
-        byte[] output = IOUtils.toByteArray(inputStream);
+        DocumentPayload output;
+        try (InputStream inputStream = httpConn.getInputStream()) {
+            output = DocumentPayload.spool(inputStream);
+        } finally {
+            httpConn.disconnect();
+        }
 
         String fileName = file.getFilePath();
         String[] fileNameSplitted = fileName.split("\\.");
         String extension = fileNameSplitted[fileNameSplitted.length - 1];
         String filenameWithoutExtension = fileName.substring(0, fileName.length() - extension.length() - 1);
 
-        inputStream.close();
-        httpConn.disconnect();
-
         return new Triplet(output, filenameWithoutExtension, extension);
     }
 
@@ -100,25 +165,49 @@ public final class TelegramBot extends TelegramLongPollingBot implements Bot {
         licenceMsg.setChatId(chatId);
         licenceMsg.setText(BotTextMessage.LICENSE_MESSAGE);
         try {
-            sendMessage(licenceMsg);
+            rateLimiter.execute(Long.toString(chatId), () -> sendMessage(licenceMsg));
         } catch (TelegramApiException e) {
             System.err.println("Error while sending the licence message");
             e.printStackTrace();
         }
     }
 
+    /**
+     * @param forwardable if the file_id can be sent again as type (e.g. not a voice sent as an audio)
+     */
     private void onAttachmentReceived(BotMessage botMsg, Message message,
-                                      String fileId, BotDocumentType type,
+                                      String fileId, BotDocumentType type, boolean forwardable,
                                       Optional<MessageBuilder> builder) {
+        String chatId = Long.toString(message.getChatId());
+        Optional<Triplet<DocumentPayload, String, String>> cached = attachmentCache.getDownload(fileId);
+        // Every destination is this bot, which sends it again by id: it is downloaded only if that fails
+        if (!cached.isPresent() && forwardable && botsController.isBridgedOnlyTo(chatId, this)) {
+            BotTextMessage textMessage = new BotTextMessage(botMsg, message.getCaption());
+            botsController.sendMessage(new BotDocumentMessage(textMessage, fileId, "", null, type,
+                    Optional.of(fileId)), chatId, builder);
+            return;
+        }
+
         try {
-            Triplet<byte[], String, String> data = downloadFromFileId(fileId);
+            Triplet<DocumentPayload, String, String> data;
+            if (cached.isPresent())
+                data = cached.get();
+            else {
+                data = downloadFromFileId(fileId);
+                attachmentCache.putDownload(fileId, data);
+            }
 
             BotTextMessage textMessage = new BotTextMessage(botMsg, message.getCaption());
             BotDocumentMessage documentMessage = new BotDocumentMessage(textMessage,
-                    data.getValue1(), data.getValue2(), data.getValue0(), type);
+                    data.getValue1(), data.getValue2(), data.getValue0(), type,
+                    forwardable ? Optional.of(fileId) : Optional.empty());
 
-            botsController.sendMessage(documentMessage,
-                    Long.toString(message.getChatId()), builder);
+            // The deliveries retain the payload they still have to send
+            try {
+                botsController.sendMessage(documentMessage, chatId, builder);
+            } finally {
+                data.getValue0().release();
+            }
         } catch (TelegramApiException | IOException e) {
             System.err.println("Error loading the media received");
             e.printStackTrace();
@@ -162,26 +251,14 @@ public final class TelegramBot extends TelegramLongPollingBot implements Bot {
         String text = message.getText();
 
         if (text.equals("/users")) {
-            List<Triplet<Bot, String, List<String>>> users =
-                    botsController.askForUsers(Long.toString(message.getChatId()));
-            StringBuilder output = new StringBuilder();
-            users.forEach(channel -> {
-                output.append(channel.getValue0().getClass().getSimpleName())
-                        .append('/')
-                        .append(channel.getValue1())
-                        .append(':')
-                        .append(System.lineSeparator());
-
-                channel.getValue2().forEach(userTo -> output.append(userTo).append(System.lineSeparator()));
-
-                output.append(System.lineSeparator());
-            });
-
-            SendMessage messageToSend = new SendMessage()
-                    .setChatId(Long.toString(message.getChatId()))
-                    .setText(output.toString());
+            String chatId = Long.toString(message.getChatId());
             try {
-                sendMessage(messageToSend);
+                for (String page : botsController.askForUsersPages(chatId, USERS_FORMAT)) {
+                    SendMessage messageToSend = new SendMessage()
+                            .setChatId(chatId)
+                            .setText(page);
+                    rateLimiter.execute(chatId, () -> sendMessage(messageToSend));
+                }
             } catch (TelegramApiException e) {
                 System.err.println("Failed to send message from TelegramBot");
                 e.printStackTrace();
@@ -214,8 +291,57 @@ public final class TelegramBot extends TelegramLongPollingBot implements Bot {
     }
 
 
+    private static long chatIdOf(Update update) {
+        if (update.hasMessage())
+            return update.getMessage().getChatId();
+        else if (update.hasEditedMessage())
+            return update.getEditedMessage().getChatId();
+
+        return update.getUpdateId();
+    }
+
+    private void poll() {
+        int offset = 0;
+        long retryMillis = POLLING_RETRY_MILLIS;
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                List<Update> updates = sendApiMethod(new GetUpdates()
+                        .setOffset(offset)
+                        .setTimeout(POLLING_TIMEOUT));
+                retryMillis = POLLING_RETRY_MILLIS;
+
+                for (Update update : updates) {
+                    offset = Math.max(offset, update.getUpdateId() + 1);
+                    onUpdateReceived(update);
+                }
+            } catch (TelegramApiException e) {
+                System.err.println(String.format("Error while polling the updates of %s", botId));
+                e.printStackTrace();
+
+                try {
+                    Thread.sleep(retryMillis);
+                } catch (InterruptedException e1) {
+                    Thread.currentThread().interrupt();
+                }
+                retryMillis = Math.min(retryMillis * 2, MAX_POLLING_RETRY_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Queues the update on the worker of its chat: the updates of a chat are handled in order,
+     * the ones of different chats in parallel. It waits while the worker has too many updates.
+     */
     @Override
     public void onUpdateReceived(Update update) {
+        try {
+            updateDispatcher.execute(TelegramBot.chatIdOf(update), () -> handleUpdate(update));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void handleUpdate(Update update) {
         if (update.hasMessage()) {
             Message message = update.getMessage();
             long chatId = message.getChatId();
@@ -224,10 +350,10 @@ public final class TelegramBot extends TelegramLongPollingBot implements Bot {
                     Long.toString(chatId), message.getMessageId().toString()));
 
             User user = message.getFrom();
-            users.add(user.getUserName());
-
             Chat chat = message.getChat();
-            chats.put(chat.getId(), chat.getTitle());
+            if (presence.seen(chat.getId(), chat.getTitle(),
+                    null != user.getUserName() ? user.getUserName() : user.getFirstName()))
+                PresenceIndex.invalidate(this, Long.toString(chat.getId()));
 
             String channelFrom = chat.getTitle();
             String authorNickname = user.getUserName();
@@ -243,42 +369,42 @@ public final class TelegramBot extends TelegramLongPollingBot implements Bot {
                     List<PhotoSize> photos = message.getPhoto();
                     PhotoSize photo = photos.get(photos.size() - 1);
                     onAttachmentReceived(botMsg, message, photo.getFileId(),
-                            BotDocumentType.IMAGE, messageBuilder);
+                            BotDocumentType.IMAGE, true, messageBuilder);
                 }
 
                 // Send voice message
                 else if (message.getVoice() != null) {
                     Voice voice = message.getVoice();
                     onAttachmentReceived(botMsg, message, voice.getFileId(),
-                            BotDocumentType.AUDIO, messageBuilder);
+                            BotDocumentType.AUDIO, false, messageBuilder);
                 }
 
                 // Send document
                 else if (message.hasDocument()) {
                     Document document = message.getDocument();
                     onAttachmentReceived(botMsg, message, document.getFileId(),
-                            BotDocumentType.OTHER, messageBuilder);
+                            BotDocumentType.OTHER, true, messageBuilder);
                 }
 
                 // Send videomessages
                 else if (null != message.getVideoNote()) {
                     VideoNote video = message.getVideoNote();
                     onAttachmentReceived(botMsg, message, video.getFileId(),
-                            BotDocumentType.VIDEO, messageBuilder);
+                            BotDocumentType.VIDEO, false, messageBuilder);
                 }
 
                 // Send video
                 else if (null != message.getVideo()) {
                     Video video = message.getVideo();
                     onAttachmentReceived(botMsg, message, video.getFileId(),
-                            BotDocumentType.VIDEO, messageBuilder);
+                            BotDocumentType.VIDEO, true, messageBuilder);
                 }
 
                 // Send audio
                 else if (null != message.getAudio()) {
                     Audio audio = message.getAudio();
                     onAttachmentReceived(botMsg, message, audio.getFileId(),
-                            BotDocumentType.AUDIO, messageBuilder);
+                            BotDocumentType.AUDIO, true, messageBuilder);
                 }
 
                 // Send position
@@ -334,11 +460,11 @@ public final class TelegramBot extends TelegramLongPollingBot implements Bot {
     public Optional<String> sendMessage(BotTextMessage msg, String channelTo) {
         SendMessage message = new SendMessage()
                 .setChatId(channelTo)
-                .setText(BotsController.messageFormatter(
+                .setText(PrefixTemplate.of(getId(), channelTo).format(
                         msg.getBotFrom().getId(), msg.getChannelFrom(),
                         msg.getNicknameFrom(), Optional.ofNullable(msg.getText())));
         try {
-            Message sentMessage = sendMessage(message);
+            Message sentMessage = rateLimiter.execute(channelTo, () -> sendMessage(message));
             return Optional.of(sentMessage.getMessageId().toString());
         } catch (TelegramApiException e) {
             System.err.println(String.format("Failed to send message from %s to TelegramBot", msg.getBotFrom().getId()));
@@ -349,37 +475,108 @@ public final class TelegramBot extends TelegramLongPollingBot implements Bot {
 
     @Override
     public Optional<String> sendMessage(BotDocumentMessage msg, String channelTo) {
-        String caption = BotsController.messageFormatter(
+        String caption = PrefixTemplate.of(getId(), channelTo).format(
                 msg.getBotFrom().getId(), msg.getChannelFrom(),
                 msg.getNicknameFrom(), Optional.ofNullable(msg.getText()));
-        String filename = msg.getFilename() + '.' + msg.getFileExtension();
-
-        try (InputStream docStream = new ByteArrayInputStream(msg.getDoc())) {
-            Message sentMessage;
-            switch (msg.getDocumentType()) {
-                case IMAGE:
-                    sentMessage = sendImage(caption, channelTo,
-                            docStream, filename);
-                    break;
-                case AUDIO:
-                    sentMessage = sendAudio(caption, channelTo,
-                            docStream, filename);
-                    break;
-                case VIDEO:
-                    sentMessage = sendVideo(caption, channelTo,
-                            docStream, filename);
-                    break;
-                default:
-                    sentMessage = sendDocument(caption, channelTo,
-                            docStream, filename);
+        BotDocumentType type = msg.getDocumentType();
+
+        // Sent again by id, if this bot received it or uploaded the same content before
+        Optional<String> fileId = this == msg.getBotFrom() ? msg.getFileId() : Optional.empty();
+        if (!fileId.isPresent() && null != msg.getPayload())
+            fileId = attachmentCache.getFileId(msg.getPayload(), type);
+
+        if (fileId.isPresent()) {
+            String id = fileId.get();
+            try {
+                Message sentMessage = rateLimiter.execute(channelTo, () -> sendById(type, caption, channelTo, id));
+                return Optional.of(sentMessage.getMessageId().toString());
+            } catch (TelegramApiException e) {
+                System.out.println("Warning: attachment not sent by id, uploading it...");
+                if (null != msg.getPayload())
+                    attachmentCache.removeFileId(msg.getPayload(), type);
             }
+        }
+
+        // Not downloaded when received, since only this bot had to send it: it is needed now
+        boolean downloaded = null == msg.getPayload();
+        DocumentPayload payload;
+        String filename;
+        try {
+            Triplet<DocumentPayload, String, String> data = downloaded
+                    ? downloadFromFileId(msg.getFileId().get())
+                    : Triplet.with(msg.getPayload(), msg.getFilename(), msg.getFileExtension());
+            payload = data.getValue0();
+            filename = data.getValue1() + '.' + data.getValue2();
+        } catch (TelegramApiException | IOException e) {
+            System.err.println("Error loading the media to upload");
+            e.printStackTrace();
+            return Optional.empty();
+        }
+
+        try {
+            // A new stream for each attempt, a retried request can't read again the old one
+            Message sentMessage = rateLimiter.execute(channelTo, () -> {
+                try (InputStream docStream = payload.openStream()) {
+                    switch (type) {
+                        case IMAGE:
+                            return sendImage(caption, channelTo,
+                                    docStream, filename);
+                        case AUDIO:
+                            return sendAudio(caption, channelTo,
+                                    docStream, filename);
+                        case VIDEO:
+                            return sendVideo(caption, channelTo,
+                                    docStream, filename);
+                        default:
+                            return sendDocument(caption, channelTo,
+                                    docStream, filename);
+                    }
+                } catch (IOException e) {
+                    throw new TelegramApiException("Error reading the attachment", e);
+                }
+            });
+
+            TelegramBot.getFileId(sentMessage).ifPresent(id -> attachmentCache.putFileId(payload, type, id));
             return Optional.of(sentMessage.getMessageId().toString());
-        } catch (IOException | TelegramApiException e) {
-            // IOException should never happens
+        } catch (TelegramApiException e) {
             e.printStackTrace();
             System.err.println(String.format("Failed to send message from %s to TelegramBot",
                     msg.getBotFrom().getId()));
             return Optional.empty();
+        } finally {
+            if (downloaded)
+                payload.release();
+        }
+    }
+
+    /**
+     * @return the file_id of the attachment of a message sent
+     */
+    private static Optional<String> getFileId(Message message) {
+        if (message.hasPhoto()) {
+            List<PhotoSize> photos = message.getPhoto();
+            return Optional.of(photos.get(photos.size() - 1).getFileId());
+        } else if (message.hasDocument())
+            return Optional.of(message.getDocument().getFileId());
+        else if (null != message.getVideo())
+            return Optional.of(message.getVideo().getFileId());
+        else if (null != message.getAudio())
+            return Optional.of(message.getAudio().getFileId());
+
+        return Optional.empty();
+    }
+
+    private Message sendById(BotDocumentType type, String caption, String channelTo, String fileId)
+            throws TelegramApiException {
+        switch (type) {
+            case IMAGE:
+                return sendPhoto(new SendPhoto().setChatId(channelTo).setPhoto(fileId).setCaption(caption));
+            case AUDIO:
+                return sendAudio(new SendAudio().setChatId(channelTo).setAudio(fileId).setCaption(caption));
+            case VIDEO:
+                return sendVideo(new SendVideo().setChatId(channelTo).setVideo(fileId).setCaption(caption));
+            default:
+                return sendDocument(new SendDocument().setChatId(channelTo).setDocument(fileId).setCaption(caption));
         }
     }
 
@@ -430,40 +627,61 @@ public final class TelegramBot extends TelegramLongPollingBot implements Bot {
         return sendVideo(message);
     }
 
+    private void editCaption(String channelTo, String messageId, String messageText) {
+        EditMessageCaption caption = new EditMessageCaption();
+        caption.setChatId(channelTo);
+        caption.setMessageId(Integer.parseInt(messageId));
+        caption.setCaption(messageText);
+
+        try {
+            rateLimiter.execute(channelTo, () -> editMessageCaption(caption));
+        } catch (TelegramApiException e) {
+            System.err.println("Error while changing img caption.");
+            e.printStackTrace();
+        }
+    }
+
     @Override
-    public void editMessage(BotTextMessage msg, String channelTo, String messageId) {
+    public void editMessage(BotTextMessage msg, String channelTo, String messageId, MessageKind kind) {
         String channelFromName = msg.getBotFrom().channelIdToName(msg.getChannelFrom());
-        String messageText = BotsController.messageFormatter(
+        String messageText = PrefixTemplate.of(getId(), channelTo).format(
                 msg.getBotFrom().getId(), channelFromName, msg.getNicknameFrom(),
                 Optional.ofNullable(msg.getText()));
+
+        // An attachment has only its caption
+        if (MessageKind.MEDIA == kind) {
+            editCaption(channelTo, messageId, messageText);
+            return;
+        }
+
         EditMessageText text = new EditMessageText();
         text.setChatId(channelTo);
         text.setMessageId(Integer.parseInt(messageId));
         text.setText(messageText);
 
         try {
-            this.editMessageText(text);
+            rateLimiter.execute(channelTo, () -> this.editMessageText(text));
         } catch (TelegramApiException e) {
+            if (MessageKind.TEXT == kind) {
+                System.err.println("Error while editing the message.");
+                e.printStackTrace();
+                return;
+            }
+
+            // Saved without its kind: it could be an attachment
             System.out.println("Waring: message text not found, trying to edit that as a caption...");
             e.printStackTrace(System.out);
-
-            EditMessageCaption caption = new EditMessageCaption();
-            caption.setChatId(channelTo);
-            caption.setMessageId(Integer.parseInt(messageId));
-            caption.setCaption(messageText);
-
-            try {
-                editMessageCaption(caption);
-            } catch (TelegramApiException e1) {
-                System.err.println("Error while changing img caption.");
-                e1.printStackTrace();
-            }
+            editCaption(channelTo, messageId, messageText);
         }
     }
 
     @Override
     public List<String> getUsers(String channel) {
-        return new ArrayList(users);
+        try {
+            return presence.getUsers(Long.parseLong(channel));
+        } catch (NumberFormatException e) {
+            return new ArrayList<>(0);
+        }
     }
 
     @Override
@@ -471,8 +689,15 @@ public final class TelegramBot extends TelegramLongPollingBot implements Bot {
         return this.botId;
     }
 
+    /**
+     * @return milliseconds a new message to the chat would wait for the flood limits
+     */
+    public long getSendDelay(String channelTo) {
+        return rateLimiter.getCurrentDelay(channelTo);
+    }
+
     @Override
     public String channelIdToName(String channelId) {
-        return this.chats.get(Long.parseLong(channelId));
+        return this.presence.getTitle(Long.parseLong(channelId)).orElse(channelId);
     }
 }
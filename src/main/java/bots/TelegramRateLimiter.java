@@ -0,0 +1,143 @@
+package bots;
+
+import org.telegram.telegrambots.api.objects.ResponseParameters;
+import org.telegram.telegrambots.exceptions.TelegramApiException;
+import org.telegram.telegrambots.exceptions.TelegramApiRequestException;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Schedules the requests of a Telegram bot under the flood limits of the Bot API:
+ * a global budget for the bot and a budget for each chat.
+ * When Telegram answers with retry_after, the chat is paused and the request sent again.
+ * The budgets of the chats that are idle again, full and not paused, are forgotten once there are many of them.
+ */
+final class TelegramRateLimiter {
+    static final String GLOBAL_RATE_KEY = "global-rate-limit";
+    static final String CHAT_RATE_KEY = "chat-rate-limit";
+    // https://core.telegram.org/bots/faq#my-bot-is-hitting-limits-how-do-i-avoid-this
+    private static final double DEFAULT_GLOBAL_RATE = 30; // messages per second
+    private static final double DEFAULT_CHAT_RATE = 20; // messages per minute
+    private static final int TOO_MANY_REQUESTS = 429;
+    private static final int MAX_RETRIES = 3;
+    private static final int SWEEP_SIZE = 1000; // chats
+
+    private final TokenBucket globalBucket;
+    private final Map<String, TokenBucket> chatBuckets = new ConcurrentHashMap<>();
+    private final double chatRate;
+    // Chats after which the idle budgets are removed
+    private volatile int sweepSize = SWEEP_SIZE;
+
+    TelegramRateLimiter(Map<String, String> configs) {
+        double globalRate = configs.containsKey(GLOBAL_RATE_KEY)
+                ? Double.parseDouble(configs.get(GLOBAL_RATE_KEY)) : DEFAULT_GLOBAL_RATE;
+        this.chatRate = configs.containsKey(CHAT_RATE_KEY)
+                ? Double.parseDouble(configs.get(CHAT_RATE_KEY)) : DEFAULT_CHAT_RATE;
+
+        this.globalBucket = new TokenBucket(globalRate, globalRate);
+    }
+
+    private static long retryAfter(TelegramApiException e) {
+        if (!(e instanceof TelegramApiRequestException))
+            return -1;
+
+        TelegramApiRequestException requestException = (TelegramApiRequestException) e;
+        ResponseParameters parameters = requestException.getParameters();
+        if (null != parameters && null != parameters.getRetryAfter())
+            return TimeUnit.SECONDS.toNanos(parameters.getRetryAfter());
+
+        // Too many requests without any hint, wait a second
+        if (null != requestException.getErrorCode() &&
+                TOO_MANY_REQUESTS == requestException.getErrorCode())
+            return TimeUnit.SECONDS.toNanos(1);
+
+        return -1;
+    }
+
+    /**
+     * Runs the action on the budget of the chat, created if missing, while it can't be removed.
+     */
+    private TokenBucket updateChatBucket(String chatId, Consumer<TokenBucket> action) {
+        TokenBucket chatBucket = this.chatBuckets.compute(chatId, (id, bucket) -> {
+            TokenBucket current = null != bucket ? bucket
+                    : new TokenBucket(this.chatRate, this.chatRate / TimeUnit.MINUTES.toSeconds(1));
+            action.accept(current);
+            return current;
+        });
+
+        if (this.chatBuckets.size() > this.sweepSize)
+            this.sweep();
+        return chatBucket;
+    }
+
+    private synchronized void sweep() {
+        if (this.chatBuckets.size() <= this.sweepSize)
+            return;
+
+        for (String chatId : this.chatBuckets.keySet())
+            this.chatBuckets.computeIfPresent(chatId, (id, bucket) -> bucket.isIdle() ? null : bucket);
+        // The busy ones stay: sweep again only when they doubled
+        this.sweepSize = Math.max(SWEEP_SIZE, 2 * this.chatBuckets.size());
+    }
+
+    /**
+     * Waits for a free slot on both the global and the chat budgets, then sends the request.
+     */
+    <T> T execute(String chatId, TelegramRequest<T> request) throws TelegramApiException {
+        for (int attempt = 0; ; attempt++) {
+            this.acquire(chatId);
+
+            try {
+                return request.execute();
+            } catch (TelegramApiException e) {
+                long retryAfter = TelegramRateLimiter.retryAfter(e);
+                if (0 > retryAfter || MAX_RETRIES <= attempt)
+                    throw e;
+
+                System.err.println(String.format("Telegram flood limit reached on %s, retrying in %d seconds.",
+                        chatId, TimeUnit.NANOSECONDS.toSeconds(retryAfter)));
+                this.updateChatBucket(chatId, bucket -> bucket.blockFor(retryAfter));
+            }
+        }
+    }
+
+    private void acquire(String chatId) throws TelegramApiException {
+        long[] chatDelay = new long[1];
+        TokenBucket chatBucket = this.updateChatBucket(chatId, bucket -> chatDelay[0] = bucket.reserve());
+        long globalDelay = this.globalBucket.reserve();
+
+        try {
+            TimeUnit.NANOSECONDS.sleep(Math.max(chatDelay[0], globalDelay));
+        } catch (InterruptedException e) {
+            chatBucket.cancel();
+            this.globalBucket.cancel();
+            Thread.currentThread().interrupt();
+            throw new TelegramApiException("Interrupted while waiting for the rate limiter", e);
+        }
+    }
+
+    /**
+     * @return milliseconds a new request to the chat would wait now
+     */
+    long getCurrentDelay(String chatId) {
+        // No budget: the chat is idle
+        TokenBucket chatBucket = this.chatBuckets.get(chatId);
+        return TimeUnit.NANOSECONDS.toMillis(Math.max(null != chatBucket ? chatBucket.getDelay() : 0,
+                this.globalBucket.getDelay()));
+    }
+
+    /**
+     * @return milliseconds a new request would wait now because of the global budget
+     */
+    long getCurrentDelay() {
+        return TimeUnit.NANOSECONDS.toMillis(this.globalBucket.getDelay());
+    }
+
+    @FunctionalInterface
+    interface TelegramRequest<T> {
+        T execute() throws TelegramApiException;
+    }
+}
@@ -0,0 +1,75 @@
+package bots;
+
+import org.telegram.telegrambots.TelegramBotsApi;
+import org.telegram.telegrambots.api.methods.BotApiMethod;
+import org.telegram.telegrambots.api.objects.Update;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
+import org.telegram.telegrambots.bots.TelegramWebhookBot;
+import org.telegram.telegrambots.exceptions.TelegramApiRequestException;
+
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Receives the updates of a {@link TelegramBot} from the webhook server shared by all the Telegram bots,
+ * at external-url/callback/token, and hands them to {@link TelegramBot#onUpdateReceived(Update)}.
+ */
+final class TelegramWebhook extends TelegramWebhookBot {
+    static final String EXTERNAL_URL_KEY = "external-url";
+    static final String INTERNAL_URL_KEY = "internal-url";
+    static final String KEYSTORE_KEY = "keystore";
+    static final String KEYSTORE_PASSWORD_KEY = "keystore-password";
+    static final String CERTIFICATE_KEY = "certificate";
+
+    private final TelegramBot bot;
+
+    TelegramWebhook(TelegramBot bot, DefaultBotOptions options) {
+        super(options);
+        this.bot = bot;
+    }
+
+    /**
+     * @return the started webhook server if the external and internal urls are in the config.
+     * It listens on HTTPS if a keystore is given, and sends the certificate (if self-signed) to Telegram
+     */
+    static Optional<TelegramBotsApi> fromConfig(Map<String, String> webhookConfig)
+            throws TelegramApiRequestException {
+        if (!webhookConfig.containsKey(EXTERNAL_URL_KEY) || !webhookConfig.containsKey(INTERNAL_URL_KEY))
+            return Optional.empty();
+
+        String externalUrl = webhookConfig.get(EXTERNAL_URL_KEY);
+        String internalUrl = webhookConfig.get(INTERNAL_URL_KEY);
+        if (!webhookConfig.containsKey(KEYSTORE_KEY))
+            return Optional.of(new TelegramBotsApi(externalUrl, internalUrl));
+
+        String keystore = webhookConfig.get(KEYSTORE_KEY);
+        String keystorePassword = webhookConfig.get(KEYSTORE_PASSWORD_KEY);
+        if (!webhookConfig.containsKey(CERTIFICATE_KEY))
+            return Optional.of(new TelegramBotsApi(keystore, keystorePassword, externalUrl, internalUrl));
+
+        return Optional.of(new TelegramBotsApi(keystore, keystorePassword, externalUrl, internalUrl,
+                webhookConfig.get(CERTIFICATE_KEY)));
+    }
+
+    @Override
+    public BotApiMethod<?> onWebhookUpdateReceived(Update update) {
+        // Nothing is sent back in the response, the bot answers with its own requests
+        this.bot.onUpdateReceived(update);
+        return null;
+    }
+
+    @Override
+    public String getBotUsername() {
+        return this.bot.getBotUsername();
+    }
+
+    @Override
+    public String getBotToken() {
+        return this.bot.getBotToken();
+    }
+
+    @Override
+    public String getBotPath() {
+        return this.bot.getBotToken();
+    }
+}
@@ -0,0 +1,87 @@
+package bots;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket used to schedule requests under a rate limit.
+ * A token is reserved even when the bucket is empty: the caller is told how long to wait for it,
+ * so concurrent callers are queued one after the other instead of retrying together.
+ */
+final class TokenBucket {
+    private final double capacity;
+    private final double tokensPerNano;
+    private double tokens;
+    private long lastRefill;
+    private long blockedUntil;
+
+    TokenBucket(double capacity, double tokensPerSecond) {
+        this.capacity = capacity;
+        this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+        this.blockedUntil = this.lastRefill;
+    }
+
+    private void refill(long now) {
+        this.tokens = Math.min(this.capacity, this.tokens + (now - this.lastRefill) * this.tokensPerNano);
+        this.lastRefill = now;
+    }
+
+    /**
+     * Takes a token.
+     *
+     * @return nanoseconds to wait before using it
+     */
+    synchronized long reserve() {
+        long now = System.nanoTime();
+        this.refill(now);
+        this.tokens -= 1;
+
+        return Math.max(this.delay(now), 0);
+    }
+
+    /**
+     * Gives back a token not used, e.g. because the reservation was interrupted.
+     */
+    synchronized void cancel() {
+        this.tokens = Math.min(this.capacity, this.tokens + 1);
+    }
+
+    /**
+     * No tokens are usable until the given delay expires.
+     */
+    synchronized void blockFor(long nanos) {
+        long now = System.nanoTime();
+        if (now + nanos - this.blockedUntil > 0)
+            this.blockedUntil = now + nanos;
+    }
+
+    /**
+     * @return nanoseconds a new reservation would wait now
+     */
+    synchronized long getDelay() {
+        long now = System.nanoTime();
+        this.refill(now);
+
+        long empty = 1 > this.tokens ? (long) ((1 - this.tokens) / this.tokensPerNano) : 0;
+
+        return Math.max(Math.max(this.blockedUntil - now, empty), 0);
+    }
+
+    /**
+     * @return true if the bucket is as a new one, full and not blocked: it can be forgotten
+     */
+    synchronized boolean isIdle() {
+        long now = System.nanoTime();
+        this.refill(now);
+
+        return this.capacity <= this.tokens && 0 >= this.blockedUntil - now;
+    }
+
+    private long delay(long now) {
+        long blocked = this.blockedUntil - now;
+        long empty = 0 > this.tokens ? (long) (-this.tokens / this.tokensPerNano) : 0;
+
+        return Math.max(blocked, empty);
+    }
+}
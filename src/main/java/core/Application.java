@@ -6,14 +6,12 @@ import models.FileStorage;
 import models.MessagesModel;
 
 import java.io.IOException;
-import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.util.*;
 import java.util.Map.Entry;
 
 public final class Application {
-    private static Connection database;
+    private static final long SHUTDOWN_DELIVERY_TIMEOUT = 10000;
 
     public static void main(String[] args) throws InterruptedException {
         // TODO: find a way to replace this temporary fix
@@ -30,22 +28,25 @@ public final class Application {
 
         Map<String, Object> channelsConfig = conf.getChannels();
 
-        Application.initDatabase(conf.getDbUri());
+        Application.initDatabase(conf.getDbUri(), conf.getDatabaseConfig());
 
         Map<String, String> webserverConfig = conf.getWebserverConfig();
         FileStorage.init(webserverConfig);
 
+        DeliveryQueue.init(conf.getDeliveryConfig());
+        TelegramBot.initWebhook(conf.getTelegramWebhookConfig());
+
+        compileFormats(channelsConfig);
         Map<String, Bot> bots = initBots(conf.getBots(), channelsConfig);
         manageBridges(bots, channelsConfig, conf.getBridges());
 
         handleShutdown();
     }
 
-    private static void initDatabase(String dbUri) {
+    private static void initDatabase(String dbUri, Map<String, String> databaseConfig) {
         try {
-            Application.database = DriverManager.getConnection(dbUri);
-            MessagesModel.init(Application.database);
-        } catch (SQLException e) {
+            MessagesModel.init(dbUri, databaseConfig);
+        } catch (SQLException | IOException e) {
             System.err.println("Error loading the database");
             e.printStackTrace();
         }
@@ -78,6 +79,21 @@ public final class Application {
         return bots;
     }
 
+    private static void compileFormats(Map<String, Object> channelsConfig) {
+        channelsConfig.forEach((key, value) -> {
+            Map<String, String> channelConfig = (Map<String, String>) value;
+            if (channelConfig.containsKey(PrefixTemplate.FORMAT_KEY)) {
+                try {
+                    PrefixTemplate.register(channelConfig.get(Config.BOT_KEY), channelConfig.get(Config.NAME_KEY),
+                            channelConfig.get(PrefixTemplate.FORMAT_KEY));
+                } catch (IllegalArgumentException e) {
+                    System.err.println(String.format("Invalid format of channel '%s', the default one is used.", key));
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
     private static String[] getChannelsName(String botName,
                                             Map<String, Object> channelsConfig) {
         List<String> channels = new LinkedList<>();
@@ -128,12 +144,12 @@ public final class Application {
 
     private static void handleShutdown() throws InterruptedException {
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            try {
-                MessagesModel.clean();
-                Application.database.close();
-            } catch (SQLException e) {
-                e.printStackTrace();
-            }
+            DeliveryQueue.shutdown(SHUTDOWN_DELIVERY_TIMEOUT);
+            MessagesModel.flush();
+
+            MessagesModel.clean();
+            MessagesModel.close();
+            FileStorage.close();
             System.out.println("core.Application terminated");
         }));
 
@@ -1,89 +1,135 @@
 package core;
 
 import bots.Bot;
-import messages.BotDocumentMessage;
 import messages.BotMessage;
 import messages.BotTextMessage;
 import models.MessageBuilder;
-import models.MessagesModel;
+import org.javatuples.Pair;
 import org.javatuples.Triplet;
 
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Optional;
-import java.util.UUID;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 public class BotsController {
     public static final String EVERY_CHANNEL = "*";
 
-    // Triplet<Bot bot, String channelTo, String channelFrom>
-    private final List<Triplet<Bot, String, String>> sendToList = new LinkedList<>();
+    // Copied on write: readers always see a consistent snapshot without locking
+    private volatile RoutingTable routingTable = RoutingTable.EMPTY;
+    // Map<Pair<String channelFrom, UsersFormat format>, RenderedUsers>
+    private final Map<Pair<String, UsersFormat>, RenderedUsers> renderedUsers = new ConcurrentHashMap<>();
 
+    /**
+     * Formats with the default template, see {@link PrefixTemplate} for the format of each channel.
+     */
     public static String messageFormatter(String botFrom,
                                           String channelFrom,
                                           String nicknameFrom,
                                           Optional<String> message) {
-        if (message.isPresent())
-            return String.format("%s/%s/%s: %s",
-                    botFrom, channelFrom, nicknameFrom, message.get());
-
-        return String.format("%s/%s/%s",
-                botFrom, channelFrom, nicknameFrom);
+        return PrefixTemplate.DEFAULT.format(botFrom, channelFrom, nicknameFrom, message);
     }
 
-    public void addBridge(Bot bot, String channelTo, String channelFrom) {
-        this.sendToList.add(Triplet.with(bot, channelTo, channelFrom));
+    public synchronized void addBridge(Bot bot, String channelTo, String channelFrom) {
+        this.routingTable = this.routingTable.withBridge(bot, channelTo, channelFrom);
     }
 
     public void editMessage(BotTextMessage messageText, String channelFrom, String messageId) {
-        this.sendToList.stream()
-                .filter(sendTo -> sendTo.getValue2().equals(channelFrom) || channelFrom.equals(BotsController.EVERY_CHANNEL))
-                .forEach(sendTo -> {
-                    Optional<String> message = MessagesModel.getChildMessage(messageText.getBotFrom().getId(),
-                            messageText.getChannelFrom(), messageId,
-                            sendTo.getValue0().getId(), sendTo.getValue1());
-                    if (message.isPresent()) {
-                        sendTo.getValue0().editMessage(messageText, sendTo.getValue1(), message.get());
-                    }
-                });
+        // Edits go through the same queues of the messages, so they can't overtake them.
+        // The messages to edit are looked up once for every destination.
+        ChildMessagesLookup childMessages = new ChildMessagesLookup(messageText, messageId);
+        this.routingTable.routesFrom(channelFrom)
+                .forEach(sendTo -> DeliveryQueue.of(sendTo.getValue0(), sendTo.getValue1())
+                        .enqueue(Delivery.edit(messageText, childMessages)));
     }
 
     public void sendMessage(BotMessage message, String channelFrom,
                             Optional<MessageBuilder> optionalBuilder) {
-        this.sendToList.stream()
-                .filter(sendTo -> sendTo.getValue2().equals(channelFrom) || channelFrom.equals(BotsController.EVERY_CHANNEL))
-                .forEach(sendTo -> {
-                    Optional<String> msgId;
-                    if (message instanceof BotDocumentMessage)
-                        msgId = sendTo.getValue0().sendMessage(
-                                (BotDocumentMessage) message, sendTo.getValue1());
-                    else if (message instanceof BotTextMessage)
-                        msgId = sendTo.getValue0().sendMessage(
-                                (BotTextMessage) message, sendTo.getValue1());
-                    else {
-                        System.err.println("Error, message type not valid.");
-                        return;
-                    }
-
-                    if (optionalBuilder.isPresent()) {
-                        optionalBuilder.get().append(sendTo.getValue0().getId(),
-                                sendTo.getValue1(), msgId.orElse(UUID.randomUUID().toString()));
-                    }
-                });
-
-        if (optionalBuilder.isPresent())
-            optionalBuilder.get().saveHistory();
+        List<Triplet<Bot, String, String>> sendToList = this.routingTable.routesFrom(channelFrom);
+        if (sendToList.isEmpty()) {
+            optionalBuilder.ifPresent(MessageBuilder::saveHistory);
+            return;
+        }
+
+        // The history is saved once every destination has been delivered (or dropped)
+        AtomicInteger pendingDeliveries = new AtomicInteger(sendToList.size());
+        Runnable onDelivered = () -> {
+            if (0 == pendingDeliveries.decrementAndGet())
+                optionalBuilder.ifPresent(MessageBuilder::saveHistory);
+        };
+
+        sendToList.forEach(sendTo -> DeliveryQueue.of(sendTo.getValue0(), sendTo.getValue1())
+                .enqueue(Delivery.send(message, optionalBuilder, onDelivered)));
+    }
+
+    /**
+     * @return true if the messages from channelFrom go somewhere, and only to channels of bot
+     */
+    public boolean isBridgedOnlyTo(String channelFrom, Bot bot) {
+        List<Triplet<Bot, String, String>> routes = this.routingTable.routesFrom(channelFrom);
+        return !routes.isEmpty() && routes.stream().allMatch(route -> route.getValue0() == bot);
     }
 
     /**
      * @return a list of {@literal Triplet<Bot bot, String channel, List<String> nicknames>}
      */
     public List<Triplet<Bot, String, List<String>>> askForUsers(String channelFrom) {
-        return this.sendToList.stream()
-                .filter(askTo -> askTo.getValue2().equals(channelFrom))
+        return this.routingTable.routesOf(channelFrom).stream()
                 .map(askTo -> new Triplet<>(askTo.getValue0(), askTo.getValue1(),
-                                askTo.getValue0().getUsers(askTo.getValue1())))
+                        PresenceIndex.getUsers(askTo.getValue0(), askTo.getValue1()).getValue1()))
                 .collect(Collectors.toList());
     }
+
+    /**
+     * The users of the channels bridged with channelFrom, rendered once and reused until one of them changes.
+     *
+     * @return the pages to send, one message each
+     */
+    public List<String> askForUsersPages(String channelFrom, UsersFormat format) {
+        List<Triplet<Bot, String, String>> routes = this.routingTable.routesOf(channelFrom);
+        Pair<String, UsersFormat> key = Pair.with(channelFrom, format);
+        RenderedUsers rendered = this.renderedUsers.get(key);
+        if (null != rendered && rendered.isValid(routes))
+            return rendered.pages;
+
+        long[] versions = new long[routes.size()];
+        List<Triplet<Bot, String, List<String>>> users = new ArrayList<>(routes.size());
+        for (int i = 0; i < versions.length; i++) {
+            Triplet<Bot, String, String> askTo = routes.get(i);
+            Pair<Long, List<String>> channelUsers = PresenceIndex.getUsers(askTo.getValue0(), askTo.getValue1());
+            versions[i] = channelUsers.getValue0();
+            users.add(Triplet.with(askTo.getValue0(), askTo.getValue1(), channelUsers.getValue1()));
+        }
+
+        rendered = new RenderedUsers(routes, versions, Collections.unmodifiableList(format.render(users)));
+        this.renderedUsers.put(key, rendered);
+        return rendered.pages;
+    }
+
+    private static final class RenderedUsers {
+        private final List<Triplet<Bot, String, String>> routes;
+        // Version of the users of each route when the pages have been rendered
+        private final long[] versions;
+        private final List<String> pages;
+
+        private RenderedUsers(List<Triplet<Bot, String, String>> routes, long[] versions, List<String> pages) {
+            this.routes = routes;
+            this.versions = versions;
+            this.pages = pages;
+        }
+
+        private boolean isValid(List<Triplet<Bot, String, String>> currentRoutes) {
+            // The routing table is copied on write: the same list means the same bridges
+            if (currentRoutes != this.routes)
+                return false;
+
+            for (int i = 0; i < this.versions.length; i++) {
+                Triplet<Bot, String, String> route = this.routes.get(i);
+                if (PresenceIndex.versionOf(route.getValue0(), route.getValue1()) != this.versions[i])
+                    return false;
+            }
+
+            return true;
+        }
+    }
 }
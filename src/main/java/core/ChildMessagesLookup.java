@@ -0,0 +1,36 @@
+package core;
+
+import messages.BotTextMessage;
+import models.MessageKind;
+import models.MessagesModel;
+import org.javatuples.Pair;
+
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Messages sent for an edited message, looked up once and shared by the deliveries of the edit.
+ */
+final class ChildMessagesLookup {
+    private final String botIdFrom;
+    private final String channelIdFrom;
+    private final String messageIdFrom;
+    // Map<Pair<String botId, String channelId>, Pair<String messageId, MessageKind kind>>
+    private Map<Pair<String, String>, Pair<String, MessageKind>> childMessages;
+
+    ChildMessagesLookup(BotTextMessage message, String messageIdFrom) {
+        this.botIdFrom = message.getBotFrom().getId();
+        this.channelIdFrom = message.getChannelFrom();
+        this.messageIdFrom = messageIdFrom;
+    }
+
+    synchronized Optional<Pair<String, MessageKind>> getChildMessage(String botIdTo, String channelIdTo) {
+        Pair<String, String> destination = Pair.with(botIdTo, channelIdTo);
+        // Not found yet: the destination could deliver the message while the edit waits in the queues
+        if (null == this.childMessages || !this.childMessages.containsKey(destination))
+            this.childMessages = MessagesModel.getChildMessages(this.botIdFrom, this.channelIdFrom,
+                    this.messageIdFrom);
+
+        return Optional.ofNullable(this.childMessages.get(destination));
+    }
+}
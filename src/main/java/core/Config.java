@@ -23,11 +23,17 @@ class Config {
     private static final String CONTENT_FOLDER_KEY = "content-folder";
     private static final String BASE_URL_KEY = "base-url";
     private static final String DATABASE_KEY = "db-uri";
+    private static final String DELIVERY_KEY = "delivery";
+    private static final String DATABASE_OPTIONS_KEY = "database";
+    private static final String TELEGRAM_WEBHOOK_KEY = "telegram-webhook";
     private final String fileName;
     private Map<String, Object> bots;
     private Map<String, Object> channels;
     private ArrayList<ArrayList<String>> bridges;
     private Map<String, String> webserver = new HashMap<>(0);
+    private Map<String, String> delivery = new HashMap<>(0);
+    private Map<String, String> database = new HashMap<>(0);
+    private Map<String, String> telegramWebhook = new HashMap<>(0);
     private String dbUri = "";
 
     Config(String configFileName) {
@@ -74,6 +80,21 @@ class Config {
                 webserver.containsKey(Config.BASE_URL_KEY);
     }
 
+    // YAML parses numbers and booleans, but blocks are read as Map<String, String>
+    private static Map<String, String> toStringMap(Map<String, Object> map) {
+        Map<String, String> output = new LinkedHashMap<>(map.size());
+        map.forEach((key, value) -> output.put(key, null == value ? null : value.toString()));
+
+        return output;
+    }
+
+    private static Map<String, Object> toStringMaps(Map<String, Object> maps) {
+        Map<String, Object> output = new LinkedHashMap<>(maps.size());
+        maps.forEach((key, value) -> output.put(key, Config.toStringMap((Map<String, Object>) value)));
+
+        return output;
+    }
+
     public void load() throws IOException {
         Yaml yaml = new Yaml();
 
@@ -94,10 +115,17 @@ class Config {
         if (!this.isValid(settings))
             throw new IOException("File not formatted correctly");
 
-        this.bots = (Map<String, Object>) settings.get(Config.BOTS_KEY);
-        this.channels = (Map<String, Object>) settings.get(Config.CHANNELS_KEY);
+        this.bots = Config.toStringMaps((Map<String, Object>) settings.get(Config.BOTS_KEY));
+        this.channels = Config.toStringMaps((Map<String, Object>) settings.get(Config.CHANNELS_KEY));
         this.bridges = (ArrayList) settings.get(Config.BRIDGES_KEY);
-        this.webserver = (Map<String, String>) settings.get(Config.WEBSERVER_KEY);
+        this.webserver = Config.toStringMap((Map<String, Object>) settings.get(Config.WEBSERVER_KEY));
+
+        if (settings.get(Config.DELIVERY_KEY) instanceof Map)
+            this.delivery = Config.toStringMap((Map<String, Object>) settings.get(Config.DELIVERY_KEY));
+        if (settings.get(Config.DATABASE_OPTIONS_KEY) instanceof Map)
+            this.database = Config.toStringMap((Map<String, Object>) settings.get(Config.DATABASE_OPTIONS_KEY));
+        if (settings.get(Config.TELEGRAM_WEBHOOK_KEY) instanceof Map)
+            this.telegramWebhook = Config.toStringMap((Map<String, Object>) settings.get(Config.TELEGRAM_WEBHOOK_KEY));
     }
 
     public Map<String, Object> getBots() {
@@ -116,6 +144,18 @@ class Config {
         return this.webserver;
     }
 
+    public Map<String, String> getDeliveryConfig() {
+        return this.delivery;
+    }
+
+    public Map<String, String> getDatabaseConfig() {
+        return this.database;
+    }
+
+    public Map<String, String> getTelegramWebhookConfig() {
+        return this.telegramWebhook;
+    }
+
     public String getDbUri() {
         return this.dbUri;
     }
@@ -0,0 +1,108 @@
+package core;
+
+import bots.Bot;
+import messages.BotDocumentMessage;
+import messages.BotMessage;
+import messages.BotTextMessage;
+import messages.DocumentPayload;
+import models.MessageBuilder;
+import models.MessageKind;
+import org.javatuples.Pair;
+
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * A message waiting in a {@link DeliveryQueue} to be sent (or edited) on a destination channel.
+ */
+final class Delivery {
+    private final BotMessage message;
+    // Only set for edits: the messages to edit, shared by every destination
+    private final Optional<ChildMessagesLookup> edit;
+    private final Optional<MessageBuilder> builder;
+    private final Runnable onDone;
+
+    Delivery(BotMessage message, Optional<ChildMessagesLookup> edit,
+             Optional<MessageBuilder> builder, Runnable onDone) {
+        this.message = message;
+        this.edit = edit;
+        this.builder = builder;
+        this.onDone = onDone;
+    }
+
+    static Delivery send(BotMessage message, Optional<MessageBuilder> builder, Runnable onDone) {
+        // Every destination keeps the attachment until it has been delivered (or dropped)
+        if (message instanceof BotDocumentMessage && null != ((BotDocumentMessage) message).getPayload()) {
+            DocumentPayload payload = ((BotDocumentMessage) message).getPayload().retain();
+            return new Delivery(message, Optional.empty(), builder, () -> {
+                payload.release();
+                onDone.run();
+            });
+        }
+
+        return new Delivery(message, Optional.empty(), builder, onDone);
+    }
+
+    static Delivery edit(BotTextMessage message, ChildMessagesLookup edit) {
+        return new Delivery(message, Optional.of(edit), Optional.empty(), () -> {
+        });
+    }
+
+    BotMessage getMessage() {
+        return this.message;
+    }
+
+    Optional<ChildMessagesLookup> getEdit() {
+        return this.edit;
+    }
+
+    Optional<MessageBuilder> getBuilder() {
+        return this.builder;
+    }
+
+    Runnable getOnDone() {
+        return this.onDone;
+    }
+
+    void deliver(Bot bot, String channelTo) {
+        try {
+            if (this.edit.isPresent())
+                this.deliverEdit(bot, channelTo);
+            else
+                this.deliverMessage(bot, channelTo);
+        } finally {
+            this.onDone.run();
+        }
+    }
+
+    /**
+     * Called instead of {@link #deliver(Bot, String)} when the delivery is dropped.
+     */
+    void discard() {
+        this.onDone.run();
+    }
+
+    private void deliverMessage(Bot bot, String channelTo) {
+        Optional<String> msgId;
+        MessageKind kind;
+        if (this.message instanceof BotDocumentMessage) {
+            msgId = bot.sendMessage((BotDocumentMessage) this.message, channelTo);
+            kind = MessageKind.MEDIA;
+        } else if (this.message instanceof BotTextMessage) {
+            msgId = bot.sendMessage((BotTextMessage) this.message, channelTo);
+            kind = MessageKind.TEXT;
+        } else {
+            System.err.println("Error, message type not valid.");
+            return;
+        }
+
+        this.builder.ifPresent(messageBuilder -> messageBuilder.append(bot.getId(),
+                channelTo, msgId.orElse(UUID.randomUUID().toString()), kind));
+    }
+
+    private void deliverEdit(Bot bot, String channelTo) {
+        BotTextMessage messageText = (BotTextMessage) this.message;
+        Optional<Pair<String, MessageKind>> child = this.edit.get().getChildMessage(bot.getId(), channelTo);
+        child.ifPresent(sent -> bot.editMessage(messageText, channelTo, sent.getValue0(), sent.getValue1()));
+    }
+}
@@ -0,0 +1,196 @@
+package core;
+
+import bots.Bot;
+import org.javatuples.Pair;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded outbound queue of a destination (bot, channelTo), drained in order by its own worker.
+ * A slow destination fills only its own queue, the others keep going.
+ */
+final class DeliveryQueue {
+    private static final String QUEUE_SIZE_KEY = "queue-size";
+    private static final String OVERFLOW_KEY = "overflow";
+    private static final String SPILL_FOLDER_KEY = "spill-folder";
+    private static final int DEFAULT_QUEUE_SIZE = 100;
+    private static final long DRAIN_POLLING_MILLIS = 50;
+
+    private static final Map<Pair<Bot, String>, DeliveryQueue> queues = new ConcurrentHashMap<>();
+    private static int queueSize = DEFAULT_QUEUE_SIZE;
+    private static OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private static String spillFolder = System.getProperty("java.io.tmpdir");
+
+    private final Bot bot;
+    private final String channelTo;
+    private final BlockingQueue<Delivery> queue;
+    private final OverflowPolicy policy;
+    private final Object lock = new Object();
+    private final Thread worker;
+    // Deliveries enqueued and not yet delivered or dropped
+    private final AtomicInteger pending = new AtomicInteger();
+    private SpillFile spill;
+    private volatile boolean running = true;
+
+    private DeliveryQueue(Bot bot, String channelTo, int capacity, OverflowPolicy policy) {
+        this.bot = bot;
+        this.channelTo = channelTo;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.policy = policy;
+
+        this.worker = new Thread(this::run, String.format("delivery-%s-%s", bot.getId(), channelTo));
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    static void init(Map<String, String> deliveryConfig) {
+        if (deliveryConfig.containsKey(QUEUE_SIZE_KEY))
+            DeliveryQueue.queueSize = Integer.parseInt(deliveryConfig.get(QUEUE_SIZE_KEY));
+        if (deliveryConfig.containsKey(OVERFLOW_KEY))
+            DeliveryQueue.overflowPolicy = OverflowPolicy.fromConfig(deliveryConfig.get(OVERFLOW_KEY));
+        if (deliveryConfig.containsKey(SPILL_FOLDER_KEY))
+            DeliveryQueue.spillFolder = deliveryConfig.get(SPILL_FOLDER_KEY);
+    }
+
+    static DeliveryQueue of(Bot bot, String channelTo) {
+        return queues.computeIfAbsent(Pair.with(bot, channelTo),
+                destination -> new DeliveryQueue(bot, channelTo,
+                        DeliveryQueue.queueSize, DeliveryQueue.overflowPolicy));
+    }
+
+    /**
+     * Waits until every queue is drained, or the timeout expires, then stops the workers.
+     */
+    static void shutdown(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        try {
+            for (DeliveryQueue deliveryQueue : queues.values()) {
+                while (!deliveryQueue.isDrained() && System.currentTimeMillis() < deadline)
+                    Thread.sleep(DRAIN_POLLING_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        queues.values().forEach(DeliveryQueue::stop);
+    }
+
+    void enqueue(Delivery delivery) {
+        this.pending.incrementAndGet();
+        try {
+            switch (this.policy) {
+                case DROP_OLDEST:
+                    while (!this.queue.offer(delivery)) {
+                        Delivery dropped = this.queue.poll();
+                        if (null != dropped) {
+                            System.err.println(String.format("Delivery queue to %s/%s is full, message dropped.",
+                                    this.bot.getId(), this.channelTo));
+                            this.pending.decrementAndGet();
+                            dropped.discard();
+                        }
+                    }
+                    break;
+                case SPILL:
+                    synchronized (this.lock) {
+                        // Once something is spilled, everything after it is spilled too to keep the order
+                        if ((null == this.spill || this.spill.isEmpty()) && this.queue.offer(delivery))
+                            return;
+
+                        try {
+                            if (null == this.spill)
+                                this.spill = new SpillFile(DeliveryQueue.spillFolder,
+                                        String.format("delivery-%s-", this.bot.getId()));
+                            this.spill.write(delivery);
+                            return;
+                        } catch (IOException e) {
+                            System.err.println("Error while spilling the delivery queue, waiting instead");
+                            e.printStackTrace();
+                        }
+                    }
+                    this.queue.put(delivery);
+                    break;
+                default:
+                    this.queue.put(delivery);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.pending.decrementAndGet();
+            delivery.discard();
+        }
+    }
+
+    private Delivery next() throws InterruptedException {
+        Delivery delivery = this.queue.poll();
+        if (null != delivery)
+            return delivery;
+
+        synchronized (this.lock) {
+            if (null != this.spill && !this.spill.isEmpty()) {
+                try {
+                    return this.spill.read();
+                } catch (IOException e) {
+                    System.err.println("Error while reading the spilled deliveries");
+                    e.printStackTrace();
+                    this.pending.decrementAndGet();
+                }
+            }
+        }
+
+        return this.queue.take();
+    }
+
+    private void run() {
+        while (this.running) {
+            Delivery delivery;
+            try {
+                delivery = this.next();
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            try {
+                delivery.deliver(this.bot, this.channelTo);
+            } catch (RuntimeException e) {
+                System.err.println(String.format("Error while delivering a message to %s/%s",
+                        this.bot.getId(), this.channelTo));
+                e.printStackTrace();
+            } finally {
+                this.pending.decrementAndGet();
+            }
+        }
+    }
+
+    private boolean isDrained() {
+        return 0 == this.pending.get();
+    }
+
+    private void stop() {
+        this.running = false;
+        this.worker.interrupt();
+
+        synchronized (this.lock) {
+            if (null != this.spill) {
+                try {
+                    this.spill.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    enum OverflowPolicy {
+        BLOCK,
+        DROP_OLDEST,
+        SPILL;
+
+        static OverflowPolicy fromConfig(String value) {
+            return OverflowPolicy.valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+}
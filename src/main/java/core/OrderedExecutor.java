@@ -0,0 +1,70 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Fixed pool of workers, each one with its own bounded queue. The tasks of a key always go to the same worker,
+ * so they run in order, while the tasks of different keys run in parallel.
+ * When the queue of a worker is full, {@link #execute(Object, Runnable)} blocks: the producer slows down.
+ * A producer that can't wait uses unbounded queues and {@link #submit(Object, Runnable)} instead.
+ */
+public final class OrderedExecutor {
+    private final List<BlockingQueue<Runnable>> queues;
+
+    /**
+     * @param queueSize tasks waiting for each worker, Integer.MAX_VALUE for no limit
+     */
+    public OrderedExecutor(String name, int workers, int queueSize) {
+        this.queues = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++) {
+            BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>(queueSize);
+            this.queues.add(queue);
+
+            Thread worker = new Thread(() -> OrderedExecutor.run(queue), String.format("%s-%d", name, i));
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    private static void run(BlockingQueue<Runnable> queue) {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    queue.take().run();
+                } catch (RuntimeException e) {
+                    // A failed task must not stop the others of the worker
+                    System.err.println("Error while running a task");
+                    e.printStackTrace();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs the task after the ones already submitted with the same key, waiting if the worker is busy.
+     */
+    public void execute(Object key, Runnable task) throws InterruptedException {
+        this.queueOf(key).put(task);
+    }
+
+    /**
+     * Like {@link #execute(Object, Runnable)}, but it never waits.
+     *
+     * @return the tasks now waiting for the worker
+     * @throws IllegalStateException if the queue of the worker is full, it can't be with no limit
+     */
+    public int submit(Object key, Runnable task) {
+        BlockingQueue<Runnable> queue = this.queueOf(key);
+        queue.add(task);
+        return queue.size();
+    }
+
+    private BlockingQueue<Runnable> queueOf(Object key) {
+        return this.queues.get((key.hashCode() & Integer.MAX_VALUE) % this.queues.size());
+    }
+}
@@ -0,0 +1,134 @@
+package core;
+
+import org.javatuples.Pair;
+import org.javatuples.Triplet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Prefix of the messages forwarded to a channel, with the bot, the channel and the nickname of the author.
+ * The format of each channel (format in channels, {bot}/{channel}/{nick} by default) is compiled once
+ * in a chain of parts appended to the same builder; the prefixes of the recent authors are cached.
+ */
+public final class PrefixTemplate {
+    static final String FORMAT_KEY = "format";
+    static final String DEFAULT_FORMAT = "{bot}/{channel}/{nick}";
+    private static final String SEPARATOR = ": ";
+    private static final int CACHE_SIZE = 1000; // authors of each channel
+    static final PrefixTemplate DEFAULT = PrefixTemplate.compile(DEFAULT_FORMAT);
+
+    // Map<Pair<String botId, String channel>, PrefixTemplate>
+    private static final Map<Pair<String, String>, PrefixTemplate> templates = new ConcurrentHashMap<>();
+
+    private final Part[] parts;
+    private final int literalLength;
+    // Map<Triplet<String botFrom, String channelFrom, String nickname>, String prefix>, emptied when full
+    private final Map<Triplet<String, String, String>, String> prefixes = new ConcurrentHashMap<>();
+
+    private PrefixTemplate(Part[] parts, int literalLength) {
+        this.parts = parts;
+        this.literalLength = literalLength;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the format has a placeholder other than {bot}, {channel} and {nick}
+     */
+    public static PrefixTemplate compile(String format) {
+        List<Part> parts = new ArrayList<>();
+        int literalLength = 0;
+        int start = 0;
+        while (start < format.length()) {
+            int open = format.indexOf('{', start);
+            int close = -1 == open ? -1 : format.indexOf('}', open);
+            int end = -1 == close ? format.length() : open;
+
+            if (start < end) {
+                String literal = format.substring(start, end);
+                parts.add((output, bot, channel, nickname) -> output.append(literal));
+                literalLength += literal.length();
+            }
+            if (-1 == close)
+                break;
+
+            String placeholder = format.substring(open + 1, close);
+            switch (placeholder) {
+                case "bot":
+                    parts.add((output, bot, channel, nickname) -> output.append(bot));
+                    break;
+                case "channel":
+                    parts.add((output, bot, channel, nickname) -> output.append(channel));
+                    break;
+                case "nick":
+                    parts.add((output, bot, channel, nickname) -> output.append(nickname));
+                    break;
+                default:
+                    throw new IllegalArgumentException(String.format("Unknown placeholder '{%s}' in '%s'",
+                            placeholder, format));
+            }
+            start = close + 1;
+        }
+
+        return new PrefixTemplate(parts.toArray(new Part[parts.size()]), literalLength);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the format isn't valid
+     */
+    static void register(String botId, String channel, String format) {
+        templates.put(Pair.with(botId, channel), PrefixTemplate.compile(format));
+    }
+
+    /**
+     * @return the template of the channel, the default one if it has no format
+     */
+    public static PrefixTemplate of(String botId, String channel) {
+        return templates.getOrDefault(Pair.with(botId, channel), DEFAULT);
+    }
+
+    private void appendTo(StringBuilder output, String bot, String channel, String nickname) {
+        for (Part part : this.parts)
+            part.appendTo(output, bot, channel, nickname);
+    }
+
+    /**
+     * @return the prefix followed by ": ", ready to be followed by the text
+     */
+    public String prefix(String bot, String channel, String nickname) {
+        Triplet<String, String, String> key = Triplet.with(bot, channel, nickname);
+        String cached = this.prefixes.get(key);
+        if (null != cached)
+            return cached;
+
+        StringBuilder output = new StringBuilder(this.literalLength + SEPARATOR.length()
+                + String.valueOf(bot).length() + String.valueOf(channel).length() + String.valueOf(nickname).length());
+        this.appendTo(output, bot, channel, nickname);
+        String prefix = output.append(SEPARATOR).toString();
+
+        // Read without locks: the authors are forgotten all together, not the least recent one
+        if (this.prefixes.size() >= CACHE_SIZE)
+            this.prefixes.clear();
+        this.prefixes.put(key, prefix);
+        return prefix;
+    }
+
+    /**
+     * @return the prefix followed by the message, only the prefix if there's no message
+     */
+    public String format(String bot, String channel, String nickname, Optional<String> message) {
+        if (message.isPresent())
+            return this.prefix(bot, channel, nickname) + message.get();
+
+        StringBuilder output = new StringBuilder();
+        this.appendTo(output, bot, channel, nickname);
+        return output.toString();
+    }
+
+    @FunctionalInterface
+    private interface Part {
+        void appendTo(StringBuilder output, String bot, String channel, String nickname);
+    }
+}
@@ -0,0 +1,110 @@
+package core;
+
+import bots.Bot;
+import org.javatuples.Pair;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Users of each channel (bot, channel), read from {@link Bot#getUsers} the first time they are asked
+ * and then kept up to date by the bots with their joins, parts and messages.
+ * Every change increments the version of the channel, so what is built on its users can be reused until then.
+ * Only the channels asked for are kept, the bridged ones: the changes of the others are ignored.
+ */
+public final class PresenceIndex {
+    private static final Map<Pair<Bot, String>, ChannelUsers> channels = new ConcurrentHashMap<>();
+
+    private PresenceIndex() {
+    }
+
+    /**
+     * @return null if the users of the channel have never been asked
+     */
+    private static ChannelUsers of(Bot bot, String channel) {
+        return channels.get(Pair.with(bot, channel));
+    }
+
+    /**
+     * The user joined the channel, or wrote in it.
+     */
+    public static void join(Bot bot, String channel, String nickname) {
+        ChannelUsers users = PresenceIndex.of(bot, channel);
+        if (null == users)
+            return;
+        synchronized (users) {
+            if (null != users.nicknames && users.nicknames.add(nickname))
+                users.version++;
+        }
+    }
+
+    public static void leave(Bot bot, String channel, String nickname) {
+        ChannelUsers users = PresenceIndex.of(bot, channel);
+        if (null == users)
+            return;
+        synchronized (users) {
+            if (null != users.nicknames && users.nicknames.remove(nickname))
+                users.version++;
+        }
+    }
+
+    /**
+     * The user left every channel of the bot.
+     */
+    public static void quit(Bot bot, String nickname) {
+        channels.forEach((key, users) -> {
+            if (key.getValue0() == bot)
+                PresenceIndex.leave(bot, key.getValue1(), nickname);
+        });
+    }
+
+    /**
+     * The users of the channel are read again from the bot the next time they are asked.
+     */
+    public static void invalidate(Bot bot, String channel) {
+        ChannelUsers users = PresenceIndex.of(bot, channel);
+        if (null == users)
+            return;
+        synchronized (users) {
+            users.nicknames = null;
+            users.version++;
+        }
+    }
+
+    public static void invalidate(Bot bot) {
+        channels.keySet().stream()
+                .filter(key -> key.getValue0() == bot)
+                .forEach(key -> PresenceIndex.invalidate(bot, key.getValue1()));
+    }
+
+    /**
+     * @return -1 if the users of the channel have never been asked
+     */
+    static long versionOf(Bot bot, String channel) {
+        ChannelUsers users = PresenceIndex.of(bot, channel);
+        if (null == users)
+            return -1;
+        synchronized (users) {
+            return users.version;
+        }
+    }
+
+    /**
+     * @return a copy of the users, with the version it corresponds to
+     */
+    static Pair<Long, List<String>> getUsers(Bot bot, String channel) {
+        ChannelUsers users = channels.computeIfAbsent(Pair.with(bot, channel), key -> new ChannelUsers());
+        synchronized (users) {
+            if (null == users.nicknames)
+                users.nicknames = new LinkedHashSet<>(bot.getUsers(channel));
+
+            return Pair.with(users.version, new ArrayList<>(users.nicknames));
+        }
+    }
+
+    private static final class ChannelUsers {
+        // null until they are read from the bot
+        private Set<String> nicknames;
+        private long version;
+    }
+}
@@ -0,0 +1,61 @@
+package core;
+
+import bots.Bot;
+import org.javatuples.Triplet;
+
+import java.util.*;
+
+/**
+ * Immutable snapshot of the bridges of a {@link BotsController}, indexed by source channel.
+ * Every change produces a new table, so readers never need a lock.
+ */
+final class RoutingTable {
+    static final RoutingTable EMPTY = new RoutingTable(Collections.emptyMap(), Collections.emptyList());
+
+    // Triplet<Bot bot, String channelTo, String channelFrom>
+    private final Map<String, List<Triplet<Bot, String, String>>> routesByChannelFrom;
+    private final List<Triplet<Bot, String, String>> everyChannelRoutes;
+
+    private RoutingTable(Map<String, List<Triplet<Bot, String, String>>> routesByChannelFrom,
+                         List<Triplet<Bot, String, String>> everyChannelRoutes) {
+        this.routesByChannelFrom = routesByChannelFrom;
+        this.everyChannelRoutes = everyChannelRoutes;
+    }
+
+    /**
+     * @return a copy of this table with the new bridge added
+     */
+    RoutingTable withBridge(Bot bot, String channelTo, String channelFrom) {
+        Triplet<Bot, String, String> route = Triplet.with(bot, channelTo, channelFrom);
+
+        Map<String, List<Triplet<Bot, String, String>>> routes = new HashMap<>(this.routesByChannelFrom);
+        List<Triplet<Bot, String, String>> channelRoutes =
+                new ArrayList<>(routes.getOrDefault(channelFrom, Collections.emptyList()));
+        channelRoutes.add(route);
+        routes.put(channelFrom, Collections.unmodifiableList(channelRoutes));
+
+        List<Triplet<Bot, String, String>> everyChannel = new ArrayList<>(this.everyChannelRoutes);
+        everyChannel.add(route);
+
+        return new RoutingTable(Collections.unmodifiableMap(routes),
+                Collections.unmodifiableList(everyChannel));
+    }
+
+    /**
+     * @return the bridges to follow for a message coming from channelFrom,
+     * every bridge if channelFrom is {@link BotsController#EVERY_CHANNEL}
+     */
+    List<Triplet<Bot, String, String>> routesFrom(String channelFrom) {
+        if (channelFrom.equals(BotsController.EVERY_CHANNEL))
+            return this.everyChannelRoutes;
+
+        return this.routesOf(channelFrom);
+    }
+
+    /**
+     * @return only the bridges explicitly configured for channelFrom
+     */
+    List<Triplet<Bot, String, String>> routesOf(String channelFrom) {
+        return this.routesByChannelFrom.getOrDefault(channelFrom, Collections.emptyList());
+    }
+}
@@ -0,0 +1,174 @@
+package core;
+
+import bots.Bot;
+import messages.BotDocumentMessage;
+import messages.BotDocumentType;
+import messages.BotMessage;
+import messages.BotTextMessage;
+import messages.DocumentPayload;
+import models.MessageBuilder;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Optional;
+
+/**
+ * FIFO of deliveries that overflowed a {@link DeliveryQueue}.
+ * Texts are written on disk, only the references to bots, builders and attachments (already on disk) stay in memory.
+ * It is not thread-safe, the owner queue synchronizes the access.
+ */
+final class SpillFile implements Closeable {
+    private static final byte TEXT_RECORD = 0;
+    private static final byte DOCUMENT_RECORD = 1;
+
+    private final Path path;
+    private final RandomAccessFile file;
+    private final Deque<Header> headers = new ArrayDeque<>();
+    private long readPosition;
+    private long writePosition;
+
+    SpillFile(String folder, String prefix) throws IOException {
+        Path directory = Paths.get(folder);
+        Files.createDirectories(directory);
+        this.path = Files.createTempFile(directory, prefix, ".spill");
+        this.path.toFile().deleteOnExit();
+        this.file = new RandomAccessFile(this.path.toFile(), "rw");
+    }
+
+    private static void writeString(DataOutput output, String value) throws IOException {
+        if (null == value) {
+            output.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(DataInput input) throws IOException {
+        int length = input.readInt();
+        if (0 > length)
+            return null;
+
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    boolean isEmpty() {
+        return this.headers.isEmpty();
+    }
+
+    int size() {
+        return this.headers.size();
+    }
+
+    void write(Delivery delivery) throws IOException {
+        BotMessage message = delivery.getMessage();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream record = new DataOutputStream(bytes)) {
+            record.writeByte(message instanceof BotDocumentMessage ? DOCUMENT_RECORD : TEXT_RECORD);
+            SpillFile.writeString(record, message.getNicknameFrom());
+            SpillFile.writeString(record, message.getChannelFrom());
+            SpillFile.writeString(record, message instanceof BotTextMessage
+                    ? ((BotTextMessage) message).getText() : null);
+
+            if (message instanceof BotDocumentMessage) {
+                BotDocumentMessage document = (BotDocumentMessage) message;
+                SpillFile.writeString(record, document.getFilename());
+                SpillFile.writeString(record, document.getFileExtension());
+                SpillFile.writeString(record, document.getDocumentType().name());
+                SpillFile.writeString(record, document.getFileId().orElse(null));
+            }
+        }
+
+        this.file.seek(this.writePosition);
+        this.file.writeInt(bytes.size());
+        this.file.write(bytes.toByteArray());
+        this.writePosition = this.file.getFilePointer();
+
+        this.headers.add(new Header(message.getBotFrom(), message instanceof BotDocumentMessage
+                ? ((BotDocumentMessage) message).getPayload() : null,
+                delivery.getEdit(), delivery.getBuilder(), delivery.getOnDone()));
+    }
+
+    /**
+     * @return the oldest delivery spilled, null if there aren't any
+     * @throws IOException if it can't be read, it is then discarded: its onDone is run, which saves its history
+     *                     and releases its attachment (see {@link Delivery#send})
+     */
+    Delivery read() throws IOException {
+        Header header = this.headers.poll();
+        if (null == header)
+            return null;
+
+        try {
+            return this.read(header);
+        } catch (IOException | RuntimeException e) {
+            header.onDone.run();
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+    }
+
+    private Delivery read(Header header) throws IOException {
+        this.file.seek(this.readPosition);
+        byte[] bytes = new byte[this.file.readInt()];
+        this.file.readFully(bytes);
+        this.readPosition = this.file.getFilePointer();
+
+        // Everything has been read, the file can start again from the beginning
+        if (this.headers.isEmpty()) {
+            this.readPosition = 0;
+            this.writePosition = 0;
+            this.file.setLength(0);
+        }
+
+        try (DataInputStream record = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            byte kind = record.readByte();
+            BotMessage botMessage = new BotMessage(SpillFile.readString(record),
+                    SpillFile.readString(record), header.botFrom);
+            BotTextMessage message = new BotTextMessage(botMessage, SpillFile.readString(record));
+
+            if (DOCUMENT_RECORD == kind) {
+                String filename = SpillFile.readString(record);
+                String fileExtension = SpillFile.readString(record);
+                BotDocumentType type = BotDocumentType.valueOf(SpillFile.readString(record));
+                Optional<String> fileId = Optional.ofNullable(SpillFile.readString(record));
+                message = new BotDocumentMessage(message, filename, fileExtension, header.payload, type, fileId);
+            }
+
+            return new Delivery(message, header.edit, header.builder, header.onDone);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.file.close();
+        Files.deleteIfExists(this.path);
+    }
+
+    private static final class Header {
+        private final Bot botFrom;
+        // Retained by the delivery and released by its onDone, null for texts
+        private final DocumentPayload payload;
+        private final Optional<ChildMessagesLookup> edit;
+        private final Optional<MessageBuilder> builder;
+        private final Runnable onDone;
+
+        private Header(Bot botFrom, DocumentPayload payload, Optional<ChildMessagesLookup> edit,
+                       Optional<MessageBuilder> builder, Runnable onDone) {
+            this.botFrom = botFrom;
+            this.payload = payload;
+            this.edit = edit;
+            this.builder = builder;
+            this.onDone = onDone;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package core;
+
+import bots.Bot;
+import org.javatuples.Triplet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * How a bot shows the users of the bridged channels: each channel is a header followed by its users,
+ * split in pages no longer than maxPageLength. A page split in the middle of a channel repeats its header.
+ */
+public final class UsersFormat {
+    private final String headerSuffix;
+    private final String nicknameSeparator;
+    private final String channelSeparator;
+    private final int maxPageLength;
+    private final boolean pagePerChannel;
+
+    /**
+     * @param pagePerChannel true to start a new page for every channel, channelSeparator is then unused
+     */
+    public UsersFormat(String headerSuffix, String nicknameSeparator, String channelSeparator,
+                       int maxPageLength, boolean pagePerChannel) {
+        this.headerSuffix = headerSuffix;
+        this.nicknameSeparator = nicknameSeparator;
+        this.channelSeparator = channelSeparator;
+        this.maxPageLength = maxPageLength;
+        this.pagePerChannel = pagePerChannel;
+    }
+
+    private static void flush(StringBuilder page, List<String> pages) {
+        if (0 < page.length()) {
+            pages.add(page.toString());
+            page.setLength(0);
+        }
+    }
+
+    /**
+     * @param channels a list of {@literal Triplet<Bot bot, String channel, List<String> nicknames>}
+     */
+    List<String> render(List<Triplet<Bot, String, List<String>>> channels) {
+        List<String> pages = new ArrayList<>();
+        StringBuilder page = new StringBuilder();
+        for (Triplet<Bot, String, List<String>> channel : channels) {
+            String header = channel.getValue0().getClass().getSimpleName() + '/' + channel.getValue1()
+                    + this.headerSuffix;
+            if (this.pagePerChannel
+                    || page.length() + this.channelSeparator.length() + header.length() > this.maxPageLength)
+                UsersFormat.flush(page, pages);
+            else if (0 < page.length())
+                page.append(this.channelSeparator);
+            page.append(header);
+
+            boolean first = true;
+            for (String nickname : channel.getValue2()) {
+                String separator = first ? "" : this.nicknameSeparator;
+                if (!first && page.length() + separator.length() + nickname.length() > this.maxPageLength) {
+                    UsersFormat.flush(page, pages);
+                    page.append(header);
+                    separator = "";
+                }
+                page.append(separator).append(nickname);
+                first = false;
+            }
+        }
+        UsersFormat.flush(page, pages);
+
+        return pages;
+    }
+}
@@ -1,27 +1,41 @@
 package messages;
 
+import java.util.Optional;
+
 public class BotDocumentMessage extends BotTextMessage {
-    private final byte[] doc;
+    private final DocumentPayload payload;
     private final String fileExtension;
     private final BotDocumentType type;
     private final String filename;
+    // Id of the attachment on the bot it comes from, it can be sent again by that bot without uploading it
+    private final Optional<String> fileId;
 
     public BotDocumentMessage(BotTextMessage message,
                               String filename, String fileExtension,
-                              byte[] doc, BotDocumentType type) {
+                              DocumentPayload payload, BotDocumentType type) {
+        this(message, filename, fileExtension, payload, type, Optional.empty());
+    }
+
+    public BotDocumentMessage(BotTextMessage message,
+                              String filename, String fileExtension,
+                              DocumentPayload payload, BotDocumentType type, Optional<String> fileId) {
         super(message, message.getText());
-        this.doc = doc;
+        this.payload = payload;
         this.fileExtension = fileExtension;
         this.type = type;
         this.filename = filename;
+        this.fileId = fileId;
     }
 
     public String getFileExtension() {
         return this.fileExtension;
     }
 
-    public byte[] getDoc() {
-        return this.doc;
+    /**
+     * @return null if it hasn't been downloaded, because the file id is enough to every destination
+     */
+    public DocumentPayload getPayload() {
+        return this.payload;
     }
 
     public String getFilename() {
@@ -31,4 +45,8 @@ public class BotDocumentMessage extends BotTextMessage {
     public BotDocumentType getDocumentType() {
         return this.type;
     }
+
+    public Optional<String> getFileId() {
+        return this.fileId;
+    }
 }
@@ -0,0 +1,146 @@
+package messages;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The content of an attachment, spooled once to a temporary file and read again by every destination.
+ * The file is deleted when the last reference is released: whoever keeps the payload
+ * (e.g. a pending delivery) must {@link #retain()} it and then {@link #release()} it.
+ */
+public final class DocumentPayload {
+    private static final String TEMP_PREFIX = "brooklyn-attachment";
+    private static final long TRANSFER_CHUNK = 1 << 20; // bytes
+
+    private final Path path;
+    private final long size;
+    private final byte[] hash;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private DocumentPayload(Path path, long size, byte[] hash) {
+        this.path = path;
+        this.size = size;
+        this.hash = hash;
+    }
+
+    /**
+     * Copies the source to a temporary file, computing its SHA-256 while it streams.
+     * The caller owns the first reference.
+     */
+    public static DocumentPayload spool(ReadableByteChannel source) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM implements SHA-256
+            throw new IOException(e);
+        }
+
+        Path path = Files.createTempFile(TEMP_PREFIX, null);
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE);
+             ReadableByteChannel hashing = new DigestChannel(source, digest)) {
+            long size = 0;
+            for (long transferred; 0 < (transferred = file.transferFrom(hashing, size, TRANSFER_CHUNK)); )
+                size += transferred;
+
+            return new DocumentPayload(path, size, digest.digest());
+        } catch (IOException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+    }
+
+    public static DocumentPayload spool(InputStream source) throws IOException {
+        return DocumentPayload.spool(Channels.newChannel(source));
+    }
+
+    /**
+     * @return a new channel on the content, it must be closed
+     */
+    public FileChannel open() throws IOException {
+        return FileChannel.open(this.path, StandardOpenOption.READ);
+    }
+
+    /**
+     * @return a new stream on the content, it must be closed
+     */
+    public InputStream openStream() throws IOException {
+        return Channels.newInputStream(this.open());
+    }
+
+    public long getSize() {
+        return this.size;
+    }
+
+    /**
+     * @return the SHA-256 of the content
+     */
+    public byte[] getHash() {
+        return this.hash.clone();
+    }
+
+    public DocumentPayload retain() {
+        if (0 >= this.references.getAndIncrement())
+            throw new IllegalStateException("Payload already released");
+
+        return this;
+    }
+
+    public void release() {
+        if (0 != this.references.decrementAndGet())
+            return;
+
+        try {
+            Files.deleteIfExists(this.path);
+        } catch (IOException e) {
+            System.err.println(String.format("Error deleting the attachment %s", this.path));
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Updates a digest with the bytes read through it.
+     */
+    private static final class DigestChannel implements ReadableByteChannel {
+        private final ReadableByteChannel source;
+        private final MessageDigest digest;
+
+        private DigestChannel(ReadableByteChannel source, MessageDigest digest) {
+            this.source = source;
+            this.digest = digest;
+        }
+
+        @Override
+        public int read(ByteBuffer destination) throws IOException {
+            int start = destination.position();
+            int read = this.source.read(destination);
+            if (0 < read) {
+                ByteBuffer bytes = destination.duplicate();
+                bytes.flip().position(start);
+                this.digest.update(bytes);
+            }
+
+            return read;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return this.source.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.source.close();
+        }
+    }
+}
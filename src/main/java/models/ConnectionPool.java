@@ -0,0 +1,100 @@
+package models;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Small pool of database connections: one writer, used by a thread at a time, and some readers.
+ * On SQLite the database is switched to WAL, so readers don't wait for the writer.
+ */
+public final class ConnectionPool implements AutoCloseable {
+    private static final String POOL_SIZE_KEY = "pool-size";
+    private static final int DEFAULT_POOL_SIZE = 4; // readers
+    private static final String SQLITE_PREFIX = "jdbc:sqlite:";
+    private static final int BUSY_TIMEOUT = 5000; // milliseconds
+
+    private final List<Connection> connections = new ArrayList<>();
+    private final ReentrantLock writerLock = new ReentrantLock();
+    private final PooledConnection writer;
+    private final BlockingQueue<PooledConnection> readers;
+
+    public ConnectionPool(String dbUri, int readers) throws SQLException {
+        this.writer = new PooledConnection(this.open(dbUri), connection -> this.writerLock.unlock());
+
+        // Every connection to a private SQLite database (in memory or temporary) would open a new one
+        int readersCount = ConnectionPool.isPrivateDatabase(dbUri) ? 0 : readers;
+        this.readers = new ArrayBlockingQueue<>(Math.max(readersCount, 1));
+        for (int i = 0; i < readersCount; i++)
+            this.readers.add(new PooledConnection(this.open(dbUri), this.readers::add));
+    }
+
+    public static ConnectionPool fromConfig(String dbUri, Map<String, String> databaseConfig) throws SQLException {
+        int readers = databaseConfig.containsKey(POOL_SIZE_KEY)
+                ? Integer.parseInt(databaseConfig.get(POOL_SIZE_KEY)) : DEFAULT_POOL_SIZE;
+
+        return new ConnectionPool(dbUri, readers);
+    }
+
+    private static boolean isPrivateDatabase(String dbUri) {
+        if (!dbUri.startsWith(SQLITE_PREFIX))
+            return false;
+
+        String path = dbUri.substring(SQLITE_PREFIX.length());
+        return path.isEmpty() || path.startsWith(":memory:") || path.contains("mode=memory");
+    }
+
+    private Connection open(String dbUri) throws SQLException {
+        Connection connection = DriverManager.getConnection(dbUri);
+        this.connections.add(connection);
+
+        if (dbUri.startsWith(SQLITE_PREFIX)) {
+            try (Statement pragma = connection.createStatement()) {
+                // Lets the retention give back the space freed, an old database is rebuilt once by the store
+                pragma.execute("PRAGMA auto_vacuum=INCREMENTAL;");
+                pragma.execute("PRAGMA journal_mode=WAL;");
+                pragma.execute("PRAGMA synchronous=NORMAL;");
+                pragma.execute("PRAGMA busy_timeout=" + BUSY_TIMEOUT + ';');
+            }
+        }
+
+        return connection;
+    }
+
+    /**
+     * @return the connection to write on, it must be closed to release it
+     */
+    PooledConnection writer() {
+        this.writerLock.lock();
+        return this.writer;
+    }
+
+    /**
+     * @return a connection to read from, it must be closed to release it
+     */
+    PooledConnection reader() throws SQLException {
+        // Without readers, everybody shares the writer
+        if (1 == this.connections.size())
+            return this.writer();
+
+        try {
+            return this.readers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        for (Connection connection : this.connections)
+            connection.close();
+    }
+}
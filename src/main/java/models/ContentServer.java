@@ -0,0 +1,275 @@
+package models;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal HTTP server of the content folder, so no other webserver is needed for the attachments.
+ * Files are sent with {@link FileChannel#transferTo} (sendfile), one request per connection.
+ * Their names are the hash of the content, so it is the ETag and they can be cached forever.
+ */
+final class ContentServer {
+    static final String PORT_KEY = "port";
+    static final String BIND_ADDRESS_KEY = "bind-address";
+    static final String SERVER_THREADS_KEY = "server-threads";
+    private static final String DEFAULT_BIND_ADDRESS = "0.0.0.0";
+    private static final int DEFAULT_SERVER_THREADS = 8;
+    private static final int MAX_HEAD_BYTES = 8192;
+    private static final int HEAD_TIMEOUT_MILLIS = 10000;
+    private static final String CACHE_CONTROL = "public, max-age=31536000, immutable";
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    private final Path contentFolder;
+    private final ServerSocketChannel server;
+    private final ExecutorService workers;
+
+    private ContentServer(Path contentFolder, InetSocketAddress address, int threads) throws IOException {
+        this.contentFolder = contentFolder.toAbsolutePath().normalize();
+        this.server = ServerSocketChannel.open();
+        this.server.bind(address);
+
+        this.workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "content-server-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Thread acceptor = new Thread(this::accept, "content-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * @return a started server if the port is in the webserver config
+     */
+    static Optional<ContentServer> fromConfig(Path contentFolder, Map<String, String> webserverConfig)
+            throws IOException {
+        if (!webserverConfig.containsKey(PORT_KEY))
+            return Optional.empty();
+
+        InetSocketAddress address = new InetSocketAddress(
+                webserverConfig.getOrDefault(BIND_ADDRESS_KEY, DEFAULT_BIND_ADDRESS),
+                Integer.parseInt(webserverConfig.get(PORT_KEY)));
+        int threads = webserverConfig.containsKey(SERVER_THREADS_KEY)
+                ? Integer.parseInt(webserverConfig.get(SERVER_THREADS_KEY)) : DEFAULT_SERVER_THREADS;
+
+        return Optional.of(new ContentServer(contentFolder, address, threads));
+    }
+
+    private void accept() {
+        while (this.server.isOpen()) {
+            try {
+                SocketChannel client = this.server.accept();
+                this.workers.execute(() -> this.serve(client));
+            } catch (IOException e) {
+                if (this.server.isOpen()) {
+                    System.err.println("Error accepting a connection to the content server");
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the request line and the headers, null if the client closed the connection first
+     */
+    private static String readHead(SocketChannel client) throws IOException {
+        // The stream of the socket, unlike the channel, honours the read timeout
+        Socket socket = client.socket();
+        InputStream input = socket.getInputStream();
+        byte[] head = new byte[MAX_HEAD_BYTES];
+        int length = 0;
+        long deadline = System.currentTimeMillis() + HEAD_TIMEOUT_MILLIS;
+        while (length < head.length) {
+            // A slow client doesn't hold a worker for longer than the timeout, however it sends the head
+            long timeout = deadline - System.currentTimeMillis();
+            if (0 >= timeout)
+                throw new SocketTimeoutException("Request head not received in time");
+            socket.setSoTimeout((int) timeout);
+
+            int read = input.read(head, length, head.length - length);
+            if (0 > read)
+                return null;
+            length += read;
+
+            String received = new String(head, 0, length, StandardCharsets.ISO_8859_1);
+            int end = received.indexOf("\r\n\r\n");
+            if (0 <= end)
+                return received.substring(0, end);
+        }
+
+        return null;
+    }
+
+    private static void write(SocketChannel client, String head) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(head.getBytes(StandardCharsets.ISO_8859_1));
+        while (bytes.hasRemaining())
+            client.write(bytes);
+    }
+
+    private static void respond(SocketChannel client, String status, Map<String, String> headers) throws IOException {
+        StringBuilder head = new StringBuilder("HTTP/1.1 ").append(status).append("\r\n");
+        headers.forEach((name, value) -> head.append(name).append(": ").append(value).append("\r\n"));
+        head.append("Connection: close\r\n\r\n");
+        ContentServer.write(client, head.toString());
+    }
+
+    private static void respondError(SocketChannel client, String status) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Length", "0");
+        ContentServer.respond(client, status, headers);
+    }
+
+    /**
+     * @return the file asked for, if it is a valid path to a visible file inside the content folder
+     */
+    private Optional<Path> resolve(String target) {
+        // Not URLDecoder: a '+' in the path (the names are Base64) is not a space
+        String path;
+        try {
+            path = new URI(target).getPath();
+        } catch (URISyntaxException e) {
+            return Optional.empty();
+        }
+        if (null == path)
+            return Optional.empty();
+
+        Path file = this.contentFolder.resolve(path.replaceFirst("^/+", "")).normalize();
+        if (!file.startsWith(this.contentFolder) || file.getFileName().toString().startsWith(".")
+                || !Files.isRegularFile(file))
+            return Optional.empty();
+
+        return Optional.of(file);
+    }
+
+    private void serve(SocketChannel client) {
+        try (SocketChannel connection = client) {
+            String head = ContentServer.readHead(connection);
+            if (null == head)
+                return;
+
+            String[] lines = head.split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            Map<String, String> requestHeaders = new HashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                String[] header = lines[i].split(":", 2);
+                if (2 == header.length)
+                    requestHeaders.put(header[0].trim().toLowerCase(), header[1].trim());
+            }
+
+            if (3 != requestLine.length) {
+                ContentServer.respondError(connection, "400 Bad Request");
+                return;
+            }
+
+            boolean isHead = "HEAD".equals(requestLine[0]);
+            if (!isHead && !"GET".equals(requestLine[0])) {
+                ContentServer.respondError(connection, "405 Method Not Allowed");
+                return;
+            }
+
+            Optional<Path> file = this.resolve(requestLine[1]);
+            if (!file.isPresent()) {
+                ContentServer.respondError(connection, "404 Not Found");
+                return;
+            }
+
+            this.sendFile(connection, file.get(), requestHeaders, isHead);
+        } catch (IOException e) {
+            // The client went away
+        }
+    }
+
+    private void sendFile(SocketChannel connection, Path file, Map<String, String> requestHeaders, boolean isHead)
+            throws IOException {
+        String filename = file.getFileName().toString();
+        int extension = filename.lastIndexOf('.');
+        String etag = '"' + (0 < extension ? filename.substring(0, extension) : filename) + '"';
+
+        Map<String, String> headers = new HashMap<>();
+        headers.put("ETag", etag);
+        headers.put("Cache-Control", CACHE_CONTROL);
+        headers.put("Accept-Ranges", "bytes");
+
+        if (etag.equals(requestHeaders.get("if-none-match"))) {
+            ContentServer.respond(connection, "304 Not Modified", headers);
+            return;
+        }
+
+        try (FileChannel content = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = content.size();
+            long start = 0;
+            long end = size - 1;
+            String status = "200 OK";
+
+            // Only a single range is supported, otherwise the whole file is sent
+            String range = requestHeaders.get("range");
+            Matcher matcher = null == range ? null : RANGE.matcher(range);
+            if (null != matcher && matcher.matches() && !(matcher.group(1).isEmpty() && matcher.group(2).isEmpty())) {
+                try {
+                    if (matcher.group(1).isEmpty()) {
+                        start = Math.max(0, size - Long.parseLong(matcher.group(2)));
+                    } else {
+                        start = Long.parseLong(matcher.group(1));
+                        if (!matcher.group(2).isEmpty())
+                            end = Math.min(end, Long.parseLong(matcher.group(2)));
+                    }
+                } catch (NumberFormatException e) {
+                    // Beyond any file size
+                    start = size;
+                }
+
+                if (start > end) {
+                    headers.put("Content-Range", "bytes */" + size);
+                    headers.put("Content-Length", "0");
+                    ContentServer.respond(connection, "416 Range Not Satisfiable", headers);
+                    return;
+                }
+
+                status = "206 Partial Content";
+                headers.put("Content-Range", String.format("bytes %d-%d/%d", start, end, size));
+            }
+
+            String contentType = URLConnection.guessContentTypeFromName(filename);
+            headers.put("Content-Type", null == contentType ? "application/octet-stream" : contentType);
+            headers.put("Content-Length", Long.toString(end - start + 1));
+            ContentServer.respond(connection, status, headers);
+
+            if (isHead)
+                return;
+
+            for (long position = start; position <= end; )
+                position += content.transferTo(position, end - position + 1, connection);
+        }
+    }
+
+    void close() {
+        try {
+            this.server.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        this.workers.shutdownNow();
+    }
+}
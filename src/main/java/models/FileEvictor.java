@@ -0,0 +1,75 @@
+package models;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the content folder under max-size bytes, removing the least recently used files
+ * and the ones not used for max-age seconds. It works on the {@link FileIndex}, without walking the folder.
+ */
+final class FileEvictor {
+    static final String MAX_SIZE_KEY = "max-size";
+    static final String MAX_AGE_KEY = "max-age";
+    static final String EVICTION_INTERVAL_KEY = "eviction-interval";
+    private static final long DEFAULT_EVICTION_INTERVAL = 60; // seconds
+
+    private final FileIndex index;
+    private final long maxSize;
+    private final long maxAge;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private FileEvictor(FileIndex index, long maxSize, long maxAge, long interval) {
+        this.index = index;
+        this.maxSize = maxSize;
+        this.maxAge = maxAge;
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "file-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::run, 0, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return a started evictor if max-size or max-age are in the webserver config
+     */
+    static Optional<FileEvictor> fromConfig(FileIndex index, Map<String, String> webserverConfig) {
+        long maxSize = webserverConfig.containsKey(MAX_SIZE_KEY) ? Long.parseLong(webserverConfig.get(MAX_SIZE_KEY)) : 0;
+        long maxAge = webserverConfig.containsKey(MAX_AGE_KEY) ? Long.parseLong(webserverConfig.get(MAX_AGE_KEY)) : 0;
+        if (0 >= maxSize && 0 >= maxAge)
+            return Optional.empty();
+
+        long interval = webserverConfig.containsKey(EVICTION_INTERVAL_KEY)
+                ? Long.parseLong(webserverConfig.get(EVICTION_INTERVAL_KEY)) : DEFAULT_EVICTION_INTERVAL;
+
+        return Optional.of(new FileEvictor(index, 0 < maxSize ? maxSize : Long.MAX_VALUE, maxAge, interval));
+    }
+
+    /**
+     * Called when a file has been stored: if it is over max-size, the eviction starts without waiting.
+     */
+    void onStored() {
+        if (this.index.getStoredBytes() > this.maxSize && this.scheduled.compareAndSet(false, true))
+            this.scheduler.execute(this::run);
+    }
+
+    private void run() {
+        this.scheduled.set(false);
+        long minLastUse = 0 < this.maxAge ? System.currentTimeMillis() - this.maxAge * 1000 : Long.MIN_VALUE;
+
+        // One file at a time, the index is not locked while deleting
+        int removed = 0;
+        while (this.index.evictOne(this.maxSize, minLastUse))
+            removed++;
+
+        if (0 < removed)
+            System.out.println(String.format("Content folder: %d files removed, %d bytes stored.",
+                    removed, this.index.getStoredBytes()));
+    }
+}
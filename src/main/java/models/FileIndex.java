@@ -0,0 +1,271 @@
+package models;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+
+/**
+ * Persistent index of the files in the content folder, by name (the hash of the content and the extension),
+ * with their size and when they have been used last. It keeps the bytes stored and the least recently used file.
+ * <p>
+ * It is saved out of the content folder, which is public, one "name TAB path TAB size TAB last use" line per file,
+ * and appended to when a file is stored, removed (just "name") or used, the last line of a name wins.
+ * The uses of a file are appended at most once every USE_SAVE_INTERVAL, and the index is written again
+ * once the appended lines are many more than its files.
+ * Malformed lines, e.g. the last one after a crash, are skipped.
+ * On start the folders changed after the last save are scanned for the files stored by someone else.
+ */
+final class FileIndex {
+    static final String INDEX_FILE_KEY = "index-file";
+    // Where it was saved before, inside the content folder
+    private static final String OLD_INDEX_FILENAME = ".brooklyn-index";
+    private static final String INDEX_EXTENSION = ".brooklyn-index";
+    private static final String SEPARATOR = "\t";
+    private static final int DAY_FOLDER_DEPTH = 3; // yyyy/MM/dd
+    private static final long USE_SAVE_INTERVAL = 3600000; // milliseconds
+    private static final int COMPACT_FACTOR = 2; // appended lines per file before the index is written again
+    private static final int MIN_COMPACT_LINES = 1000;
+
+    private final Path contentFolder;
+    private final Path indexPath;
+    // Access ordered, the least recently used first
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long storedBytes;
+    private BufferedWriter appender;
+    private int appendedLines;
+
+    private FileIndex(Path contentFolder, Path indexPath) {
+        this.contentFolder = contentFolder;
+        this.indexPath = indexPath;
+    }
+
+    /**
+     * @return the index-file of the webserver config, by default next to the content folder (e.g. html.brooklyn-index)
+     */
+    static Path indexPath(Path contentFolder, Map<String, String> webserverConfig) {
+        if (webserverConfig.containsKey(INDEX_FILE_KEY))
+            return Paths.get(webserverConfig.get(INDEX_FILE_KEY));
+
+        Path folder = contentFolder.toAbsolutePath().normalize();
+        Path parent = null == folder.getParent() ? Paths.get(System.getProperty("java.io.tmpdir")) : folder.getParent();
+        String name = null == folder.getFileName() ? "content" : folder.getFileName().toString();
+        return parent.resolve(name + INDEX_EXTENSION);
+    }
+
+    static FileIndex load(Path contentFolder, Path indexPath) throws IOException {
+        FileIndex index = new FileIndex(contentFolder, indexPath);
+        Files.createDirectories(contentFolder);
+
+        Path oldIndexPath = contentFolder.resolve(OLD_INDEX_FILENAME);
+        if (Files.exists(oldIndexPath) && !Files.exists(indexPath))
+            Files.move(oldIndexPath, indexPath);
+        Files.deleteIfExists(oldIndexPath);
+
+        Map<String, Entry> loaded = new HashMap<>();
+        FileTime saved = FileTime.fromMillis(0);
+        if (Files.exists(index.indexPath)) {
+            saved = Files.getLastModifiedTime(index.indexPath);
+            for (String line : Files.readAllLines(index.indexPath, StandardCharsets.UTF_8)) {
+                String[] fields = line.split(SEPARATOR);
+                try {
+                    if (4 == fields.length)
+                        loaded.put(fields[0], new Entry(fields[1], Long.parseLong(fields[2]),
+                                Long.parseLong(fields[3])));
+                    else if (1 == fields.length)
+                        loaded.remove(fields[0]);
+                } catch (NumberFormatException e) {
+                    // A line truncated by a crash: the file is found again by the scan, if its folder changed
+                }
+            }
+        }
+
+        int loadedCount = loaded.size();
+        index.scan(saved, loaded);
+
+        loaded.entrySet().stream()
+                .sorted(Comparator.comparingLong(entry -> entry.getValue().lastUse))
+                .forEach(entry -> index.add(entry.getKey(), entry.getValue()));
+        index.save();
+        System.out.println(String.format("File index: %d files loaded, %d found in the content folder, %d bytes.",
+                loadedCount, index.entries.size() - loadedCount, index.storedBytes));
+
+        return index;
+    }
+
+    /**
+     * Adds the files in the day folders modified after the index has been saved.
+     */
+    private void scan(FileTime saved, Map<String, Entry> loaded) throws IOException {
+        Files.walkFileTree(this.contentFolder, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                int depth = FileIndex.this.contentFolder.relativize(dir).getNameCount();
+                // A folder changes when a file is added or removed inside it, not deeper
+                if (DAY_FOLDER_DEPTH == depth && 0 > attrs.lastModifiedTime().compareTo(saved))
+                    return FileVisitResult.SKIP_SUBTREE;
+
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                String filename = file.getFileName().toString();
+                if (!filename.startsWith("."))
+                    loaded.putIfAbsent(filename, new Entry(FileIndex.this.relativePath(file), attrs.size(),
+                            attrs.lastModifiedTime().toMillis()));
+
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Writes the whole index again, then keeps it open to append.
+     */
+    private synchronized void save() throws IOException {
+        if (null != this.appender)
+            this.appender.close();
+
+        Path temporary = this.indexPath.resolveSibling(this.indexPath.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> entry : this.entries.entrySet()) {
+                writer.write(FileIndex.line(entry.getKey(), entry.getValue()));
+                writer.newLine();
+                entry.getValue().savedLastUse = entry.getValue().lastUse;
+            }
+        }
+        Files.move(temporary, this.indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        this.appender = Files.newBufferedWriter(this.indexPath, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        this.appendedLines = 0;
+    }
+
+    private static String line(String filename, Entry entry) {
+        return String.join(SEPARATOR, filename, entry.path, Long.toString(entry.size), Long.toString(entry.lastUse));
+    }
+
+    private synchronized void append(String line) {
+        try {
+            if (++this.appendedLines > COMPACT_FACTOR * this.entries.size() + MIN_COMPACT_LINES) {
+                // It contains the line too
+                this.save();
+                return;
+            }
+
+            this.appender.write(line);
+            this.appender.newLine();
+            this.appender.flush();
+        } catch (IOException e) {
+            System.err.println("Error saving the file index");
+            e.printStackTrace();
+        }
+    }
+
+    private String relativePath(Path file) {
+        return this.contentFolder.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+    }
+
+    private void add(String filename, Entry entry) {
+        Entry old = this.entries.put(filename, entry);
+        this.storedBytes += entry.size - (null == old ? 0 : old.size);
+    }
+
+    private synchronized void remove(String filename, Entry entry) {
+        if (this.entries.remove(filename, entry)) {
+            this.storedBytes -= entry.size;
+            this.append(filename);
+        }
+    }
+
+    /**
+     * @return the path, relative to the content folder, of the file if it still exists. It is now the most recently used
+     */
+    Optional<String> get(String filename) {
+        Entry entry;
+        synchronized (this) {
+            entry = this.entries.get(filename);
+            if (null == entry)
+                return Optional.empty();
+
+            entry.lastUse = System.currentTimeMillis();
+            // Kept in memory, the eviction doesn't need it to the millisecond after a restart
+            if (entry.lastUse - entry.savedLastUse >= USE_SAVE_INTERVAL) {
+                this.append(FileIndex.line(filename, entry));
+                entry.savedLastUse = entry.lastUse;
+            }
+        }
+
+        if (!Files.exists(this.contentFolder.resolve(entry.path))) {
+            this.remove(filename, entry);
+            return Optional.empty();
+        }
+
+        return Optional.of(entry.path);
+    }
+
+    synchronized void put(String filename, Path file, long size) {
+        Entry entry = new Entry(this.relativePath(file), size, System.currentTimeMillis());
+        this.add(filename, entry);
+        this.append(FileIndex.line(filename, entry));
+    }
+
+    synchronized long getStoredBytes() {
+        return this.storedBytes;
+    }
+
+    /**
+     * Removes the least recently used file if there are more than maxBytes stored or it hasn't been used after minLastUse.
+     *
+     * @return false if nothing has been removed
+     */
+    boolean evictOne(long maxBytes, long minLastUse) {
+        String filename;
+        Entry entry;
+        synchronized (this) {
+            Iterator<Map.Entry<String, Entry>> eldest = this.entries.entrySet().iterator();
+            if (!eldest.hasNext())
+                return false;
+
+            Map.Entry<String, Entry> next = eldest.next();
+            if (this.storedBytes <= maxBytes && next.getValue().lastUse >= minLastUse)
+                return false;
+
+            filename = next.getKey();
+            entry = next.getValue();
+        }
+
+        Path file = this.contentFolder.resolve(entry.path);
+        try {
+            Files.deleteIfExists(file);
+            // Removes the day folder (and its month and year) once empty
+            for (Path folder = file.getParent(); !this.contentFolder.equals(folder); folder = folder.getParent())
+                Files.delete(folder);
+        } catch (DirectoryNotEmptyException e) {
+            // Other files are still there
+        } catch (IOException e) {
+            System.err.println(String.format("Error removing %s", file));
+            e.printStackTrace();
+        }
+
+        this.remove(filename, entry);
+        return true;
+    }
+
+    private static final class Entry {
+        private final String path;
+        private final long size;
+        private long lastUse; // milliseconds
+        private long savedLastUse; // the one in the index file
+
+        private Entry(String path, long size, long lastUse) {
+            this.path = path;
+            this.size = size;
+            this.lastUse = lastUse;
+            this.savedLastUse = lastUse;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package models;
 
+import messages.DocumentPayload;
 import org.apache.http.client.utils.URIBuilder;
 
 import java.io.File;
@@ -7,6 +8,11 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.DateFormat;
@@ -14,12 +20,38 @@ import java.text.SimpleDateFormat;
 import java.util.Base64;
 import java.util.Date;
 import java.util.Map;
+import java.util.Optional;
 
 public class FileStorage {
     private static Map<String, String> webserverConfig;
+    private static Optional<FileIndex> fileIndex = Optional.empty();
+    private static Optional<FileEvictor> fileEvictor = Optional.empty();
+    private static Optional<ContentServer> contentServer = Optional.empty();
 
     public static void init(Map<String, String> webserverConfig) {
         FileStorage.webserverConfig = webserverConfig;
+
+        try {
+            Path contentFolder = Paths.get(webserverConfig.get("content-folder"));
+            FileIndex index = FileIndex.load(contentFolder, FileIndex.indexPath(contentFolder, webserverConfig));
+            FileStorage.fileIndex = Optional.of(index);
+            FileStorage.fileEvictor = FileEvictor.fromConfig(index, webserverConfig);
+        } catch (IOException e) {
+            System.err.println("Error loading the file index, the files stored in the previous days won't be reused");
+            e.printStackTrace();
+        }
+
+        try {
+            FileStorage.contentServer = ContentServer.fromConfig(Paths.get(webserverConfig.get("content-folder")),
+                    webserverConfig);
+        } catch (IOException e) {
+            System.err.println("Error starting the content server");
+            e.printStackTrace();
+        }
+    }
+
+    public static void close() {
+        contentServer.ifPresent(ContentServer::close);
     }
 
     public static String storeFile(byte[] data, String fileExtension) throws URISyntaxException, IOException {
@@ -31,11 +63,44 @@ public class FileStorage {
             e.printStackTrace();
         }
 
-        byte[] hash = digest.digest(data);
+        return FileStorage.storeFile(digest.digest(data), data.length, fileExtension, file -> {
+            try (FileOutputStream fos = new FileOutputStream(file)) {
+                fos.write(data);
+            }
+        });
+    }
+
+    /**
+     * Copies the payload with {@link FileChannel#transferTo}, without reading it in memory.
+     */
+    public static String storeFile(DocumentPayload payload, String fileExtension)
+            throws URISyntaxException, IOException {
+        return FileStorage.storeFile(payload.getHash(), payload.getSize(), fileExtension, file -> {
+            try (FileChannel source = payload.open();
+                 FileChannel destination = FileChannel.open(file.toPath(),
+                         StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                long size = source.size();
+                for (long position = 0; position < size; )
+                    position += source.transferTo(position, size - position, destination);
+            }
+        });
+    }
+
+    private static String storeFile(byte[] hash, long size, String fileExtension, FileWriter writer)
+            throws URISyntaxException, IOException {
         String encoded = Base64.getEncoder().encodeToString(hash)
                 .replace(File.separator, ""); // It prevents to create useless directories
 
         String filename = encoded + '.' + fileExtension;
+        URIBuilder builder = new URIBuilder(FileStorage.webserverConfig.get("base-url"));
+
+        // Stored before, maybe in another day
+        Optional<String> storedPath = fileIndex.flatMap(index -> index.get(filename));
+        if (storedPath.isPresent()) {
+            builder.setPath(storedPath.get());
+            return builder.toString();
+        }
+
         String contentFolder = FileStorage.webserverConfig.get("content-folder");
 
         DateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd");
@@ -55,15 +120,22 @@ public class FileStorage {
 
         File file = new File(baseLocalPath + File.separator + filename);
         if (!file.exists()) {
-            try (FileOutputStream fos = new FileOutputStream(file)) {
-                fos.write(data);
+            try {
+                writer.write(file);
+                fileIndex.ifPresent(index -> index.put(filename, file.toPath(), size));
+                fileEvictor.ifPresent(FileEvictor::onStored);
+            } catch (FileAlreadyExistsException e) {
+                // Stored in the meanwhile by another destination, it has the same content
             } catch (FileNotFoundException e) {
                 e.printStackTrace();
             }
         }
 
-        URIBuilder builder = new URIBuilder(FileStorage.webserverConfig.get("base-url"));
         builder.setPath(dateFormat.format(date) + '/' + filename);
         return builder.toString();
     }
+
+    private interface FileWriter {
+        void write(File file) throws IOException;
+    }
 }
@@ -0,0 +1,138 @@
+package models;
+
+import org.javatuples.Pair;
+import org.javatuples.Quartet;
+import org.javatuples.Triplet;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind of the message histories: they are queued and a single thread saves them
+ * in group-committed batches, so nobody waits for the disk.
+ * Histories not written yet can still be found through {@link #getChildMessages}.
+ */
+final class HistoryWriter {
+    static final String WRITE_BEHIND_KEY = "write-behind";
+    static final String FLUSH_INTERVAL_KEY = "flush-interval";
+    static final String FLUSH_SIZE_KEY = "flush-size";
+    private static final long DEFAULT_FLUSH_INTERVAL = 200; // milliseconds
+    private static final int DEFAULT_FLUSH_SIZE = 100; // histories
+    private static final int QUEUE_CAPACITY = 10000;
+
+    private final long flushInterval;
+    private final int flushSize;
+    // Each history is a list of Quartet<String botId, String channelId, String messageId, MessageKind kind>, source first
+    private final BlockingQueue<List<Quartet<String, String, String, MessageKind>>> queue =
+            new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    // Histories queued or being written, indexed by source message
+    private final Map<Triplet<String, String, String>, List<Quartet<String, String, String, MessageKind>>> pending =
+            new ConcurrentHashMap<>();
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    private HistoryWriter(long flushInterval, int flushSize) {
+        this.flushInterval = flushInterval;
+        this.flushSize = flushSize;
+
+        this.writer = new Thread(this::run, "history-writer");
+        this.writer.start();
+    }
+
+    /**
+     * @return a started writer if the write-behind is enabled in the database config
+     */
+    static Optional<HistoryWriter> fromConfig(Map<String, String> databaseConfig) {
+        if (!Boolean.parseBoolean(databaseConfig.get(WRITE_BEHIND_KEY)))
+            return Optional.empty();
+
+        long flushInterval = databaseConfig.containsKey(FLUSH_INTERVAL_KEY)
+                ? Long.parseLong(databaseConfig.get(FLUSH_INTERVAL_KEY)) : DEFAULT_FLUSH_INTERVAL;
+        int flushSize = databaseConfig.containsKey(FLUSH_SIZE_KEY)
+                ? Integer.parseInt(databaseConfig.get(FLUSH_SIZE_KEY)) : DEFAULT_FLUSH_SIZE;
+
+        return Optional.of(new HistoryWriter(flushInterval, flushSize));
+    }
+
+    void enqueue(List<Quartet<String, String, String, MessageKind>> history) {
+        this.pending.put(history.get(0).removeFrom3(), history);
+        try {
+            this.queue.put(history);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.pending.remove(history.get(0).removeFrom3(), history);
+        }
+    }
+
+    /**
+     * Looks for the messages sent and not written yet.
+     */
+    Optional<Map<Pair<String, String>, Pair<String, MessageKind>>> getChildMessages(String botIdFrom,
+                                                                                    String channelIdFrom,
+                                                                                    String messageIdFrom) {
+        List<Quartet<String, String, String, MessageKind>> history =
+                this.pending.get(Triplet.with(botIdFrom, channelIdFrom, messageIdFrom));
+        if (null == history)
+            return Optional.empty();
+
+        Map<Pair<String, String>, Pair<String, MessageKind>> messagesTo = new HashMap<>(history.size());
+        history.stream()
+                .skip(1)
+                .forEach(message -> messagesTo.put(Pair.with(message.getValue0(), message.getValue1()),
+                        Pair.with(message.getValue2(), message.getValue3())));
+
+        return Optional.of(Collections.unmodifiableMap(messagesTo));
+    }
+
+    private void write(List<List<Quartet<String, String, String, MessageKind>>> histories) {
+        // If the group fails (e.g. a duplicate message), the others must not be lost with it
+        if (!MessageBuilder.saveHistories(histories) && 1 < histories.size())
+            histories.forEach(history -> MessageBuilder.saveHistories(Collections.singletonList(history)));
+
+        histories.forEach(history -> this.pending.remove(history.get(0).removeFrom3(), history));
+    }
+
+    private void run() {
+        List<List<Quartet<String, String, String, MessageKind>>> histories = new ArrayList<>(this.flushSize);
+        try {
+            while (this.running) {
+                histories.add(this.queue.take());
+
+                // Waits a bit for other histories to commit them together
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.flushInterval);
+                while (histories.size() < this.flushSize) {
+                    List<Quartet<String, String, String, MessageKind>> history =
+                            this.queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (null == history)
+                        break;
+                    histories.add(history);
+                }
+
+                this.write(histories);
+                histories.clear();
+            }
+        } catch (InterruptedException e) {
+            // Shutting down: what's left is written below
+        }
+
+        this.queue.drainTo(histories);
+        if (!histories.isEmpty())
+            this.write(histories);
+    }
+
+    /**
+     * Writes everything still queued and stops the writer.
+     */
+    void shutdown() {
+        this.running = false;
+        this.writer.interrupt();
+        try {
+            this.writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
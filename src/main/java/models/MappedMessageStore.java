@@ -0,0 +1,358 @@
+package models;
+
+import org.javatuples.Pair;
+import org.javatuples.Quartet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Histories appended to a memory-mapped log, found through an open addressing index kept in memory.
+ * Each record is: int length, long created (seconds), short messages, then the messages, source first:
+ * their three strings (unsigned short length + UTF-8) and a byte with the {@link MessageKind}. The length is written last, so a record is complete when it is set.
+ * <p>
+ * The log has a fixed size (store-size): expired histories (max-age) are skipped by the lookups
+ * and dropped when the full log is compacted, with the oldest ones if there isn't enough space.
+ */
+final class MappedMessageStore implements MessageStore {
+    static final String STORE_PATH_KEY = "store-path";
+    static final String STORE_SIZE_KEY = "store-size";
+    private static final long DEFAULT_STORE_SIZE = 64L << 20; // bytes
+    private static final int MAX_STORE_SIZE = Integer.MAX_VALUE; // bytes of a single mapping
+    private static final int HEADER_BYTES = 4 + 8 + 2;
+    private static final int INITIAL_INDEX_SIZE = 1 << 12; // slots, a power of 2
+
+    private final Path path;
+    private final long maxAge;
+    private FileChannel channel;
+    private MappedByteBuffer log;
+    private int writePosition;
+    // Open addressing with linear probing: hash of the source message and offset + 1 of its record, 0 if empty
+    private int[] hashes = new int[INITIAL_INDEX_SIZE];
+    private int[] offsets = new int[INITIAL_INDEX_SIZE];
+    private int indexed;
+    private long reclaimedRows;
+
+    private MappedMessageStore(Path path, long size, long maxAge) throws IOException {
+        this.path = path;
+        this.maxAge = maxAge;
+        this.map(Math.max(Files.size(path), size));
+        this.recover();
+    }
+
+    /**
+     * @return the store on store-path, or on a temporary file that is deleted on exit
+     */
+    static MappedMessageStore fromConfig(Map<String, String> databaseConfig) throws IOException {
+        long size = databaseConfig.containsKey(STORE_SIZE_KEY)
+                ? Long.parseLong(databaseConfig.get(STORE_SIZE_KEY)) : DEFAULT_STORE_SIZE;
+        long maxAge = databaseConfig.containsKey(RetentionTask.MAX_AGE_KEY)
+                ? Long.parseLong(databaseConfig.get(RetentionTask.MAX_AGE_KEY)) : 0;
+
+        Path path;
+        if (databaseConfig.containsKey(STORE_PATH_KEY)) {
+            path = Paths.get(databaseConfig.get(STORE_PATH_KEY));
+            if (!Files.exists(path))
+                Files.createFile(path);
+        } else {
+            path = Files.createTempFile("brooklyn-messages", ".log");
+            path.toFile().deleteOnExit();
+        }
+
+        return new MappedMessageStore(path, Math.min(size, MAX_STORE_SIZE), maxAge);
+    }
+
+    private void map(long size) throws IOException {
+        this.channel = FileChannel.open(this.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.log = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private static int hash(String botId, String channelId, String messageId) {
+        int hash = Objects.hash(botId, channelId, messageId);
+        return hash ^ (hash >>> 16);
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (0xFFFF < bytes.length)
+            throw new IOException("String too long for the message store");
+
+        output.writeShort(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(ByteBuffer record) {
+        byte[] bytes = new byte[record.getShort() & 0xFFFF];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the record at offset, positioned on its first message
+     */
+    private ByteBuffer record(int offset) {
+        ByteBuffer record = this.log.duplicate();
+        record.position(offset + HEADER_BYTES);
+        return record;
+    }
+
+    private boolean isExpired(int offset) {
+        return 0 < this.maxAge && this.log.getLong(offset + 4) < System.currentTimeMillis() / 1000 - this.maxAge;
+    }
+
+    /**
+     * @return the slot of the source message, or the empty slot where it would go
+     */
+    private int findSlot(int hash, String botId, String channelId, String messageId) {
+        int mask = this.offsets.length - 1;
+        int slot = hash & mask;
+        for (; 0 != this.offsets[slot]; slot = (slot + 1) & mask) {
+            if (hash != this.hashes[slot])
+                continue;
+
+            ByteBuffer record = this.record(this.offsets[slot] - 1);
+            if (MappedMessageStore.readString(record).equals(botId)
+                    && MappedMessageStore.readString(record).equals(channelId)
+                    && MappedMessageStore.readString(record).equals(messageId))
+                return slot;
+        }
+
+        return slot;
+    }
+
+    private void index(int offset) {
+        ByteBuffer record = this.record(offset);
+        String botId = MappedMessageStore.readString(record);
+        String channelId = MappedMessageStore.readString(record);
+        String messageId = MappedMessageStore.readString(record);
+        int hash = MappedMessageStore.hash(botId, channelId, messageId);
+
+        int slot = this.findSlot(hash, botId, channelId, messageId);
+        if (0 != this.offsets[slot]) {
+            // Saved again: the old record is garbage now
+            this.reclaimedRows += this.log.getShort(this.offsets[slot] - 1 + 12);
+        } else if (++this.indexed > this.offsets.length / 2) {
+            this.growIndex();
+            slot = this.findSlot(hash, botId, channelId, messageId);
+        }
+
+        this.hashes[slot] = hash;
+        this.offsets[slot] = offset + 1;
+    }
+
+    private void growIndex() {
+        int[] oldHashes = this.hashes;
+        int[] oldOffsets = this.offsets;
+        this.hashes = new int[oldOffsets.length * 2];
+        this.offsets = new int[oldOffsets.length * 2];
+
+        int mask = this.offsets.length - 1;
+        for (int i = 0; i < oldOffsets.length; i++) {
+            if (0 == oldOffsets[i])
+                continue;
+
+            int slot = oldHashes[i] & mask;
+            while (0 != this.offsets[slot])
+                slot = (slot + 1) & mask;
+            this.hashes[slot] = oldHashes[i];
+            this.offsets[slot] = oldOffsets[i];
+        }
+    }
+
+    private void clearIndex() {
+        this.hashes = new int[INITIAL_INDEX_SIZE];
+        this.offsets = new int[INITIAL_INDEX_SIZE];
+        this.indexed = 0;
+    }
+
+    /**
+     * Indexes the records already in the log, e.g. after a crash.
+     */
+    private void recover() {
+        int position = 0;
+        while (position + HEADER_BYTES <= this.log.capacity()) {
+            int length = this.log.getInt(position);
+            if (0 >= length || position + 4 + length > this.log.capacity())
+                break;
+
+            this.index(position);
+            position += 4 + length;
+        }
+
+        this.writePosition = position;
+    }
+
+    /**
+     * @return the offsets of the records still indexed and not expired, oldest first
+     */
+    private List<Integer> liveRecords() {
+        List<Integer> live = new ArrayList<>(this.indexed);
+        for (int offset : this.offsets)
+            if (0 != offset && !this.isExpired(offset - 1))
+                live.add(offset - 1);
+
+        Collections.sort(live);
+        return live;
+    }
+
+    /**
+     * Rewrites the live records in a new log of the same size.
+     * If they fill more than half of it, the oldest histories are dropped.
+     */
+    private void compact(int needed) throws IOException {
+        List<Integer> live = this.liveRecords();
+        long liveBytes = 0;
+        for (int offset : live)
+            liveBytes += 4 + this.log.getInt(offset);
+
+        // Half of the log is left free, so it is not compacted again soon
+        long size = this.log.capacity();
+        int first = 0;
+        for (; liveBytes + needed + 4 > size / 2 && first < live.size(); first++)
+            liveBytes -= 4 + this.log.getInt(live.get(first));
+
+        Path compacted = Paths.get(this.path.toString() + ".compact");
+        long removedRows = 0;
+        int position = 0;
+        try (FileChannel compactedChannel = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer compactedLog = compactedChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            for (int i = first; i < live.size(); i++) {
+                int offset = live.get(i);
+                ByteBuffer record = this.log.duplicate();
+                record.position(offset).limit(offset + 4 + this.log.getInt(offset));
+                compactedLog.position(position);
+                compactedLog.put(record);
+                position = compactedLog.position();
+            }
+            compactedLog.force();
+        }
+
+        for (int offset : this.offsets)
+            if (0 != offset)
+                removedRows += this.log.getShort(offset - 1 + 12);
+        for (int i = first; i < live.size(); i++)
+            removedRows -= this.log.getShort(live.get(i) + 12);
+
+        this.channel.close();
+        Files.move(compacted, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.map(size);
+
+        this.clearIndex();
+        this.recover();
+        this.reclaimedRows += removedRows;
+        System.out.println(String.format("Message store compacted: %d messages removed, %d bytes used of %d.",
+                removedRows, this.writePosition, size));
+    }
+
+    /**
+     * @return false if the history doesn't fit in the log, it is not saved
+     */
+    private boolean append(List<Quartet<String, String, String, MessageKind>> history, long created) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream messages = new DataOutputStream(bytes)) {
+            for (Quartet<String, String, String, MessageKind> message : history) {
+                MappedMessageStore.writeString(messages, message.getValue0());
+                MappedMessageStore.writeString(messages, message.getValue1());
+                MappedMessageStore.writeString(messages, message.getValue2());
+                messages.writeByte(message.getValue3().ordinal());
+            }
+        }
+
+        int needed = HEADER_BYTES + bytes.size();
+        // The compaction keeps at most half of the log: a bigger history would drop every other one
+        if ((long) needed + 4 > this.log.capacity() / 2)
+            return false;
+
+        // Keeps 4 bytes of zeros after the last record, the end of the log
+        if ((long) this.writePosition + needed + 4 > this.log.capacity())
+            this.compact(needed);
+        if ((long) this.writePosition + needed + 4 > this.log.capacity())
+            return false;
+
+        this.log.putLong(this.writePosition + 4, created);
+        this.log.putShort(this.writePosition + 12, (short) history.size());
+        ByteBuffer record = this.log.duplicate();
+        record.position(this.writePosition + HEADER_BYTES);
+        record.put(bytes.toByteArray());
+        this.log.putInt(this.writePosition, needed - 4);
+
+        this.index(this.writePosition);
+        this.writePosition += needed;
+        return true;
+    }
+
+    @Override
+    public synchronized boolean saveHistories(Collection<List<Quartet<String, String, String, MessageKind>>> histories) {
+        long created = System.currentTimeMillis() / 1000;
+        try {
+            for (List<Quartet<String, String, String, MessageKind>> history : histories)
+                // Skipped alone: saving the others again would duplicate them
+                if (!this.append(history, created))
+                    System.err.println(String.format("History of %d messages too big for the message store, not saved.",
+                            history.size()));
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public synchronized Map<Pair<String, String>, Pair<String, MessageKind>> getChildMessages(String botIdFrom,
+                                                                                              String channelIdFrom,
+                                                                                              String messageIdFrom) {
+        Map<Pair<String, String>, Pair<String, MessageKind>> output = new HashMap<>();
+
+        int slot = this.findSlot(MappedMessageStore.hash(botIdFrom, channelIdFrom, messageIdFrom),
+                botIdFrom, channelIdFrom, messageIdFrom);
+        int offset = this.offsets[slot] - 1;
+        if (0 > offset || this.isExpired(offset))
+            return output;
+
+        int messages = this.log.getShort(offset + 12);
+        ByteBuffer record = this.record(offset);
+        for (int i = 0; i < 3; i++)
+            MappedMessageStore.readString(record);
+        record.get();
+        for (int i = 1; i < messages; i++)
+            output.put(Pair.with(MappedMessageStore.readString(record), MappedMessageStore.readString(record)),
+                    Pair.with(MappedMessageStore.readString(record), MessageKind.fromOrdinal(record.get())));
+
+        return output;
+    }
+
+    @Override
+    public synchronized long getReclaimedRows() {
+        return this.reclaimedRows;
+    }
+
+    @Override
+    public synchronized void clean() {
+        this.log.putInt(0, 0);
+        this.writePosition = 0;
+        this.clearIndex();
+    }
+
+    @Override
+    public synchronized void close() {
+        this.log.force();
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
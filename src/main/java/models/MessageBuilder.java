@@ -1,55 +1,80 @@
 package models;
 
-import java.sql.*;
-import java.util.LinkedList;
-import java.util.List;
+import org.javatuples.Pair;
+import org.javatuples.Quartet;
+import org.javatuples.Triplet;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class MessageBuilder {
-    private static Connection database;
-    private final int idFrom;
-    private final List<Integer> idsTo = new LinkedList();
+    private static MessageStore store;
+    private static Optional<HistoryWriter> historyWriter = Optional.empty();
+    private static Optional<MessageCache> messageCache = Optional.empty();
+    // Messages still being delivered: what has been sent can be edited before the history is saved
+    private static final Map<Triplet<String, String, String>, MessageBuilder> pending = new ConcurrentHashMap<>();
+    // Quartet<String botId, String channelId, String messageId, MessageKind kind>, the first one is the source message
+    private final List<Quartet<String, String, String, MessageKind>> messages = new ArrayList<>();
 
     public MessageBuilder(String botId, String channelId, String messageId) {
-        idFrom = append(botId, channelId, messageId);
-        idsTo.remove(Integer.valueOf(idFrom));
+        messages.add(Quartet.with(botId, channelId, messageId, MessageKind.UNKNOWN));
+    }
+
+    protected static void init(MessageStore store, Optional<HistoryWriter> historyWriter,
+                               Optional<MessageCache> messageCache) {
+        MessageBuilder.store = store;
+        MessageBuilder.historyWriter = historyWriter;
+        MessageBuilder.messageCache = messageCache;
+    }
+
+    static boolean saveHistories(Collection<List<Quartet<String, String, String, MessageKind>>> histories) {
+        return store.saveHistories(histories);
     }
 
-    protected static void init(Connection database) {
-        MessageBuilder.database = database;
+    /**
+     * Adds a message sent, destinations are delivered by different threads.
+     *
+     * @param kind what has been sent, so its edits don't have to guess
+     */
+    public synchronized void append(String botId, String channelId, String messageId, MessageKind kind) {
+        messages.add(Quartet.with(botId, channelId, messageId, kind));
+        pending.putIfAbsent(messages.get(0).removeFrom3(), this);
     }
 
-    public int append(String botId, String channelId, String messageId) {
-        String sql = "INSERT INTO messages(bot,channel,message) VALUES(?,?,?)";
-        try (final PreparedStatement pstmt = database.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-            pstmt.setString(1, botId);
-            pstmt.setString(2, channelId);
-            pstmt.setString(3, messageId);
-            pstmt.executeUpdate();
-
-            try (ResultSet rs = pstmt.getGeneratedKeys()) {
-                if (rs.next()) {
-                    int newId = rs.getInt(1);
-                    idsTo.add(newId);
-                    return newId;
-                } else
-                    return -1;
-            }
-        } catch (SQLException e) {
-            System.err.println(e.getMessage());
-            return -1;
+    /**
+     * @return empty if the source message isn't being delivered, otherwise the messages sent until now
+     */
+    static Optional<Map<Pair<String, String>, Pair<String, MessageKind>>> getPendingChildMessages(String botIdFrom,
+                                                                                                String channelIdFrom,
+                                                                                                String messageIdFrom) {
+        MessageBuilder builder = pending.get(Triplet.with(botIdFrom, channelIdFrom, messageIdFrom));
+        if (null == builder)
+            return Optional.empty();
+
+        Map<Pair<String, String>, Pair<String, MessageKind>> messagesTo = new HashMap<>();
+        synchronized (builder) {
+            builder.messages.stream()
+                    .skip(1)
+                    .forEach(message -> messagesTo.put(Pair.with(message.getValue0(), message.getValue1()),
+                            Pair.with(message.getValue2(), message.getValue3())));
         }
+        return Optional.of(Collections.unmodifiableMap(messagesTo));
     }
 
-    public void saveHistory() {
-        String sql = "INSERT INTO bridge(fromId,toId) VALUES(?,?)";
-        idsTo.forEach(idTo -> {
-            try (final PreparedStatement pstmt = database.prepareStatement(sql)) {
-                pstmt.setInt(1, idFrom);
-                pstmt.setInt(2, idTo);
-                pstmt.executeUpdate();
-            } catch (SQLException e) {
-                System.err.println(e.getMessage());
-            }
-        });
+    /**
+     * Saves the source message and the messages sent in a single transaction,
+     * or queues them if the write-behind is enabled.
+     */
+    public synchronized void saveHistory() {
+        List<Quartet<String, String, String, MessageKind>> history = new ArrayList<>(messages);
+        messageCache.ifPresent(cache -> cache.put(history));
+
+        if (historyWriter.isPresent())
+            historyWriter.get().enqueue(history);
+        else
+            saveHistories(Collections.singletonList(history));
+
+        // From now on found in the cache, the write-behind queue or the store
+        pending.remove(history.get(0).removeFrom3(), this);
     }
 }
@@ -0,0 +1,94 @@
+package models;
+
+import org.javatuples.Pair;
+import org.javatuples.Quartet;
+import org.javatuples.Triplet;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of the messages sent for each source message, used by the edits.
+ * Edits almost always change recent messages, so most of them never reach the database.
+ */
+final class MessageCache {
+    static final String CACHE_SIZE_KEY = "cache-size";
+    private static final int DEFAULT_CACHE_SIZE = 10000; // source messages
+
+    // Triplet<String botId, String channelId, String messageId>
+    // -> Map<Pair<String botId, String channelId>, Pair<String messageId, MessageKind kind>>
+    private final Map<Triplet<String, String, String>, Map<Pair<String, String>, Pair<String, MessageKind>>> children;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private MessageCache(int maxSize) {
+        this.children = new LinkedHashMap<Triplet<String, String, String>,
+                Map<Pair<String, String>, Pair<String, MessageKind>>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Triplet<String, String, String>,
+                    Map<Pair<String, String>, Pair<String, MessageKind>>> eldest) {
+                return this.size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return the cache, if its size in the database config isn't 0
+     */
+    static Optional<MessageCache> fromConfig(Map<String, String> databaseConfig) {
+        int maxSize = databaseConfig.containsKey(CACHE_SIZE_KEY)
+                ? Integer.parseInt(databaseConfig.get(CACHE_SIZE_KEY)) : DEFAULT_CACHE_SIZE;
+
+        return 0 < maxSize ? Optional.of(new MessageCache(maxSize)) : Optional.empty();
+    }
+
+    /**
+     * @param history the source message followed by the messages sent
+     */
+    void put(List<Quartet<String, String, String, MessageKind>> history) {
+        Map<Pair<String, String>, Pair<String, MessageKind>> messagesTo = new HashMap<>(history.size());
+        history.stream()
+                .skip(1)
+                .forEach(message -> messagesTo.put(Pair.with(message.getValue0(), message.getValue1()),
+                        Pair.with(message.getValue2(), message.getValue3())));
+
+        this.put(history.get(0).removeFrom3(), messagesTo);
+    }
+
+    void put(Triplet<String, String, String> messageFrom,
+             Map<Pair<String, String>, Pair<String, MessageKind>> messagesTo) {
+        Map<Pair<String, String>, Pair<String, MessageKind>> value =
+                Collections.unmodifiableMap(new HashMap<>(messagesTo));
+        synchronized (this.children) {
+            this.children.put(messageFrom, value);
+        }
+    }
+
+    /**
+     * @return empty if the source message isn't cached, otherwise the messages sent for it
+     */
+    Optional<Map<Pair<String, String>, Pair<String, MessageKind>>> getChildMessages(String botIdFrom,
+                                                                                    String channelIdFrom,
+                                                                                    String messageIdFrom) {
+        Map<Pair<String, String>, Pair<String, MessageKind>> messagesTo;
+        synchronized (this.children) {
+            messagesTo = this.children.get(Triplet.with(botIdFrom, channelIdFrom, messageIdFrom));
+        }
+
+        if (null == messagesTo) {
+            this.misses.incrementAndGet();
+            return Optional.empty();
+        }
+
+        this.hits.incrementAndGet();
+        return Optional.of(messagesTo);
+    }
+
+    long getHits() {
+        return this.hits.get();
+    }
+
+    long getMisses() {
+        return this.misses.get();
+    }
+}
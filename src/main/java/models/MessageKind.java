@@ -0,0 +1,17 @@
+package models;
+
+/**
+ * What has been sent for a message, so an edit goes straight to the right API (e.g. text or caption on Telegram).
+ * The ordinal is saved: new kinds go at the end.
+ */
+public enum MessageKind {
+    // Source messages and histories saved before the kind was known
+    UNKNOWN,
+    TEXT,
+    MEDIA;
+
+    static MessageKind fromOrdinal(int ordinal) {
+        MessageKind[] kinds = MessageKind.values();
+        return 0 <= ordinal && ordinal < kinds.length ? kinds[ordinal] : UNKNOWN;
+    }
+}
@@ -0,0 +1,62 @@
+package models;
+
+import org.javatuples.Pair;
+import org.javatuples.Quartet;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where the histories of the messages (a source message and the messages sent for it) are saved.
+ */
+public interface MessageStore extends AutoCloseable {
+    String STORE_KEY = "store";
+    String SQLITE_STORE = "sqlite";
+    String MAPPED_STORE = "mapped";
+
+    /**
+     * @param dbUri used only by the SQLite store
+     * @return the store chosen by the database config, SQLite by default
+     */
+    static MessageStore fromConfig(String dbUri, Map<String, String> databaseConfig) throws SQLException, IOException {
+        String store = databaseConfig.getOrDefault(STORE_KEY, SQLITE_STORE);
+        switch (store) {
+            case SQLITE_STORE:
+                return new SqliteMessageStore(ConnectionPool.fromConfig(dbUri, databaseConfig), databaseConfig);
+            case MAPPED_STORE:
+                return MappedMessageStore.fromConfig(databaseConfig);
+            default:
+                throw new IllegalArgumentException(String.format("Unknown message store: %s", store));
+        }
+    }
+
+    /**
+     * Saves many histories, each one is a list of
+     * Quartet<String botId, String channelId, String messageId, MessageKind kind> starting with the source message.
+     *
+     * @return false if they have not been saved
+     */
+    boolean saveHistories(Collection<List<Quartet<String, String, String, MessageKind>>> histories);
+
+    /**
+     * @return the messages sent for a source message, as
+     * {@literal Map<Pair<String botId, String channelId>, Pair<String messageId, MessageKind kind>>}
+     */
+    Map<Pair<String, String>, Pair<String, MessageKind>> getChildMessages(String botIdFrom, String channelIdFrom, String messageIdFrom);
+
+    /**
+     * @return the messages removed by the retention since the start
+     */
+    long getReclaimedRows();
+
+    /**
+     * Removes every history.
+     */
+    void clean();
+
+    @Override
+    void close();
+}
@@ -1,71 +1,101 @@
 package models;
 
-import java.sql.*;
+import org.javatuples.Pair;
+import org.javatuples.Triplet;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Map;
 import java.util.Optional;
 
 public class MessagesModel {
-    private static Connection database;
-
-    public static void init(Connection database) throws SQLException {
-        MessagesModel.database = database;
-        MessageBuilder.init(database);
-
-        String messageTableSql = "CREATE TABLE IF NOT EXISTS messages (\n"
-                + "	id integer PRIMARY KEY AUTOINCREMENT,\n"
-                + "	bot varchar(255) NOT NULL,\n"
-                + "	channel varchar(255) NOT NULL,\n"
-                + "	message varchar(36) NOT NULL,\n"
-                + " CONSTRAINT UC_message UNIQUE (bot,channel,message)"
-                + ");";
-
-        String bridgeTableSql = "CREATE TABLE IF NOT EXISTS bridge (\n"
-                + "fromId integer REFERENCES messages(id) ON DELETE CASCADE,\n"
-                + "toId integer REFERENCES messages(id) ON DELETE CASCADE,\n"
-                + "PRIMARY KEY(fromId, toId)"
-                + ");";
-
-        try (Statement createTables = database.createStatement()) {
-            createTables.execute(messageTableSql);
-            createTables.execute(bridgeTableSql);
-        }
+    private static MessageStore store;
+    private static Optional<HistoryWriter> historyWriter = Optional.empty();
+    private static Optional<MessageCache> messageCache = Optional.empty();
+
+    /**
+     * @param dbUri used only by the SQLite store
+     */
+    public static void init(String dbUri, Map<String, String> databaseConfig) throws SQLException, IOException {
+        MessagesModel.store = MessageStore.fromConfig(dbUri, databaseConfig);
+        MessagesModel.historyWriter = HistoryWriter.fromConfig(databaseConfig);
+        MessagesModel.messageCache = MessageCache.fromConfig(databaseConfig);
+
+        MessageBuilder.init(store, historyWriter, messageCache);
+    }
+
+    /**
+     * Writes the histories still queued by the write-behind.
+     */
+    public static void flush() {
+        historyWriter.ifPresent(HistoryWriter::shutdown);
     }
 
     public static void clean() {
-        String deleteBridge = "DROP TABLE bridge;";
-        String deleteMessages = "DROP TABLE messages;";
-        try (Statement createTables = database.createStatement()) {
-            createTables.execute(deleteBridge);
-            createTables.execute(deleteMessages);
-        } catch (SQLException e) {
-            System.err.println(e.getMessage());
-        }
+        store.clean();
+    }
+
+    public static void close() {
+        store.close();
     }
 
-    public static Optional<String> getChildMessage(String botIdFrom, String channelIdFrom, String messageIdFrom,
-                                                   String botIdTo, String channelIdTo) {
-        String query = "SELECT toMessages.message \n"
-                + "FROM ((messages fromMessages INNER JOIN bridge ON fromMessages.id = bridge.fromId) \n"
-                + "INNER JOIN messages toMessages ON toMessages.id = bridge.toId)"
-                + "WHERE fromMessages.bot = ? AND fromMessages.channel = ? AND fromMessages.message = ? \n"
-                + "AND toMessages.bot = ? AND toMessages.channel = ? \n"
-                + "LIMIT 1;";
-
-        Optional<String> output = Optional.empty();
-        try (final PreparedStatement pstmt = database.prepareStatement(query)) {
-            pstmt.setString(1, botIdFrom);
-            pstmt.setString(2, channelIdFrom);
-            pstmt.setString(3, messageIdFrom);
-            pstmt.setString(4, botIdTo);
-            pstmt.setString(5, channelIdTo);
-
-            try (ResultSet rs = pstmt.executeQuery()) {
-                if (rs.next())
-                    output = Optional.ofNullable(rs.getString("message"));
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
+    /**
+     * @return the messages sent for a source message, as
+     * {@literal Map<Pair<String botId, String channelId>, Pair<String messageId, MessageKind kind>>}
+     */
+    public static Map<Pair<String, String>, Pair<String, MessageKind>> getChildMessages(String botIdFrom,
+                                                                                        String channelIdFrom,
+                                                                                        String messageIdFrom) {
+        // Some destinations could be still delivering it, the others can already be edited
+        Optional<Map<Pair<String, String>, Pair<String, MessageKind>>> delivering =
+                MessageBuilder.getPendingChildMessages(botIdFrom, channelIdFrom, messageIdFrom);
+        if (delivering.isPresent())
+            return delivering.get();
+
+        if (messageCache.isPresent()) {
+            Optional<Map<Pair<String, String>, Pair<String, MessageKind>>> cached =
+                    messageCache.get().getChildMessages(botIdFrom, channelIdFrom, messageIdFrom);
+            if (cached.isPresent())
+                return cached.get();
+        }
+
+        // Read your writes: the history could be still queued
+        if (historyWriter.isPresent()) {
+            Optional<Map<Pair<String, String>, Pair<String, MessageKind>>> queued =
+                    historyWriter.get().getChildMessages(botIdFrom, channelIdFrom, messageIdFrom);
+            if (queued.isPresent())
+                return queued.get();
         }
 
-        return output;
+        Map<Pair<String, String>, Pair<String, MessageKind>> output =
+                store.getChildMessages(botIdFrom, channelIdFrom, messageIdFrom);
+
+        if (!output.isEmpty())
+            messageCache.ifPresent(cache -> cache.put(Triplet.with(botIdFrom, channelIdFrom, messageIdFrom), output));
+
+        return Collections.unmodifiableMap(output);
+    }
+
+    public static Optional<Pair<String, MessageKind>> getChildMessage(String botIdFrom, String channelIdFrom,
+                                                                      String messageIdFrom,
+                                                                      String botIdTo, String channelIdTo) {
+        return Optional.ofNullable(getChildMessages(botIdFrom, channelIdFrom, messageIdFrom)
+                .get(Pair.with(botIdTo, channelIdTo)));
+    }
+
+    public static long getCacheHits() {
+        return messageCache.map(MessageCache::getHits).orElse(0L);
+    }
+
+    public static long getCacheMisses() {
+        return messageCache.map(MessageCache::getMisses).orElse(0L);
+    }
+
+    /**
+     * @return the rows removed by the retention since the start
+     */
+    public static long getReclaimedRows() {
+        return store.getReclaimedRows();
     }
 }
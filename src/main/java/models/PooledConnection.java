@@ -0,0 +1,62 @@
+package models;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * A connection borrowed from a {@link ConnectionPool}, with its own cache of prepared statements.
+ * Closing it gives it back to the pool.
+ */
+final class PooledConnection implements AutoCloseable {
+    private final Connection connection;
+    private final Consumer<PooledConnection> release;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private final Map<String, PreparedStatement> generatedKeysStatements = new HashMap<>();
+
+    PooledConnection(Connection connection, Consumer<PooledConnection> release) {
+        this.connection = connection;
+        this.release = release;
+    }
+
+    Connection getConnection() {
+        return this.connection;
+    }
+
+    /**
+     * @return the statement, prepared the first time it is asked for on this connection
+     */
+    PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement statement = this.statements.get(sql);
+        if (null == statement) {
+            statement = this.connection.prepareStatement(sql);
+            this.statements.put(sql, statement);
+        }
+
+        statement.clearParameters();
+        return statement;
+    }
+
+    /**
+     * @return the statement returning the generated keys, prepared the first time it is asked for
+     */
+    PreparedStatement prepareReturningKeys(String sql) throws SQLException {
+        PreparedStatement statement = this.generatedKeysStatements.get(sql);
+        if (null == statement) {
+            statement = this.connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+            this.generatedKeysStatements.put(sql, statement);
+        }
+
+        statement.clearParameters();
+        return statement;
+    }
+
+    @Override
+    public void close() {
+        this.release.accept(this);
+    }
+}
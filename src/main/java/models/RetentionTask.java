@@ -0,0 +1,171 @@
+package models;
+
+import java.sql.*;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Periodically removes the oldest messages, older than max-age or beyond max-rows,
+ * in small transactions so the writer is never held for long.
+ * Edits of the messages removed are no longer forwarded.
+ */
+final class RetentionTask {
+    static final String MAX_AGE_KEY = "max-age";
+    static final String MAX_ROWS_KEY = "max-rows";
+    static final String RETENTION_INTERVAL_KEY = "retention-interval";
+    static final String RETENTION_CHUNK_KEY = "retention-chunk";
+    private static final long DEFAULT_RETENTION_INTERVAL = 600; // seconds
+    private static final int DEFAULT_RETENTION_CHUNK = 1000; // messages
+    private static final int VACUUM_PAGES = 1000;
+
+    private static final String FIRST_ID_SQL = "SELECT MIN(id) FROM messages;";
+    private static final String FIRST_NEW_ID_SQL = "SELECT id FROM messages WHERE created >= ? ORDER BY id LIMIT 1;";
+    private static final String FIRST_KEPT_ID_SQL = "SELECT id FROM messages ORDER BY id DESC LIMIT 1 OFFSET ?;";
+    private static final String LAST_ID_SQL = "SELECT MAX(id) FROM messages;";
+    private static final String DELETE_BRIDGE_FROM_SQL = "DELETE FROM bridge WHERE fromId < ?;";
+    private static final String DELETE_BRIDGE_TO_SQL = "DELETE FROM bridge WHERE toId < ?;";
+    private static final String DELETE_MESSAGES_SQL = "DELETE FROM messages WHERE id < ?;";
+
+    private final ConnectionPool database;
+    private final long maxAge;
+    private final long maxRows;
+    private final int chunk;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicLong reclaimedRows = new AtomicLong();
+
+    private RetentionTask(ConnectionPool database, long maxAge, long maxRows, long interval, int chunk) {
+        this.database = database;
+        this.maxAge = maxAge;
+        this.maxRows = maxRows;
+        this.chunk = chunk;
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "messages-retention");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::run, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return a started task if max-age (seconds) or max-rows are in the database config
+     */
+    static Optional<RetentionTask> fromConfig(ConnectionPool database, Map<String, String> databaseConfig) {
+        long maxAge = databaseConfig.containsKey(MAX_AGE_KEY) ? Long.parseLong(databaseConfig.get(MAX_AGE_KEY)) : 0;
+        long maxRows = databaseConfig.containsKey(MAX_ROWS_KEY) ? Long.parseLong(databaseConfig.get(MAX_ROWS_KEY)) : 0;
+        if (0 >= maxAge && 0 >= maxRows)
+            return Optional.empty();
+
+        long interval = databaseConfig.containsKey(RETENTION_INTERVAL_KEY)
+                ? Long.parseLong(databaseConfig.get(RETENTION_INTERVAL_KEY)) : DEFAULT_RETENTION_INTERVAL;
+        int chunk = databaseConfig.containsKey(RETENTION_CHUNK_KEY)
+                ? Integer.parseInt(databaseConfig.get(RETENTION_CHUNK_KEY)) : DEFAULT_RETENTION_CHUNK;
+
+        return Optional.of(new RetentionTask(database, maxAge, maxRows, interval, chunk));
+    }
+
+    private static Optional<Long> queryId(PreparedStatement query) throws SQLException {
+        try (ResultSet rs = query.executeQuery()) {
+            if (rs.next()) {
+                long id = rs.getLong(1);
+                if (!rs.wasNull())
+                    return Optional.of(id);
+            }
+        }
+
+        return Optional.empty();
+    }
+
+    /**
+     * @return the first message id to keep, every message before it has to be removed
+     */
+    private long firstIdToKeep(PooledConnection connection) throws SQLException {
+        long lastId = RetentionTask.queryId(connection.prepare(LAST_ID_SQL)).orElse(0L);
+        long firstId = 0;
+
+        // Ids grow with the time, so the messages too old are the ones before the first new one
+        if (0 < this.maxAge) {
+            PreparedStatement firstNew = connection.prepare(FIRST_NEW_ID_SQL);
+            firstNew.setLong(1, System.currentTimeMillis() / 1000 - this.maxAge);
+            firstId = Math.max(firstId, RetentionTask.queryId(firstNew).orElse(lastId + 1));
+        }
+
+        if (0 < this.maxRows) {
+            PreparedStatement firstKept = connection.prepare(FIRST_KEPT_ID_SQL);
+            firstKept.setLong(1, this.maxRows - 1);
+            firstId = Math.max(firstId, RetentionTask.queryId(firstKept).orElse(0L));
+        }
+
+        return firstId;
+    }
+
+    /**
+     * Removes the messages (and their bridges) with an id lower than upperId.
+     *
+     * @return the rows deleted
+     */
+    private int deleteBefore(long upperId) throws SQLException {
+        try (PooledConnection connection = this.database.writer()) {
+            Connection writer = connection.getConnection();
+            boolean autoCommit = writer.getAutoCommit();
+            writer.setAutoCommit(false);
+            try {
+                int rows = 0;
+                for (String sql : new String[]{DELETE_BRIDGE_FROM_SQL, DELETE_BRIDGE_TO_SQL, DELETE_MESSAGES_SQL}) {
+                    PreparedStatement delete = connection.prepare(sql);
+                    delete.setLong(1, upperId);
+                    rows += delete.executeUpdate();
+                }
+                writer.commit();
+                return rows;
+            } catch (SQLException e) {
+                writer.rollback();
+                throw e;
+            } finally {
+                writer.setAutoCommit(autoCommit);
+            }
+        }
+    }
+
+    private void run() {
+        try {
+            long firstIdToKeep;
+            long firstId;
+            try (PooledConnection connection = this.database.reader()) {
+                firstIdToKeep = this.firstIdToKeep(connection);
+                firstId = RetentionTask.queryId(connection.prepare(FIRST_ID_SQL)).orElse(firstIdToKeep);
+            }
+
+            int rows = 0;
+            for (long upperId = Math.min(firstId + this.chunk, firstIdToKeep);
+                 firstId < firstIdToKeep;
+                 firstId = upperId, upperId = Math.min(upperId + this.chunk, firstIdToKeep))
+                rows += this.deleteBefore(upperId);
+
+            if (0 < rows) {
+                try (PooledConnection connection = this.database.writer();
+                     Statement vacuum = connection.getConnection().createStatement()) {
+                    vacuum.execute("PRAGMA incremental_vacuum(" + VACUUM_PAGES + ");");
+                }
+
+                this.reclaimedRows.addAndGet(rows);
+                System.out.println(String.format("Retention: %d rows removed from the messages history.", rows));
+            }
+        } catch (SQLException e) {
+            System.err.println("Error while removing old messages");
+            e.printStackTrace();
+        }
+    }
+
+    long getReclaimedRows() {
+        return this.reclaimedRows.get();
+    }
+
+    void shutdown() {
+        this.scheduler.shutdownNow();
+    }
+}
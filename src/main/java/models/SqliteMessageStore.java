@@ -0,0 +1,238 @@
+package models;
+
+import org.javatuples.Pair;
+import org.javatuples.Quartet;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Histories saved in the messages and bridge tables of a SQL database (SQLite).
+ */
+final class SqliteMessageStore implements MessageStore {
+    // created is given here, the column added to an old table can't default to the current time
+    private static final String INSERT_MESSAGE_SQL = "INSERT INTO messages(bot,channel,message,kind,created) "
+            + "VALUES(?,?,?,?,CAST(strftime('%s', 'now') AS integer))";
+    private static final String INSERT_BRIDGE_SQL = "INSERT INTO bridge(fromId,toId) VALUES(?,?)";
+    private static final String CHILD_MESSAGES_SQL =
+            "SELECT toMessages.bot, toMessages.channel, toMessages.message, toMessages.kind \n"
+            + "FROM ((messages fromMessages INNER JOIN bridge ON fromMessages.id = bridge.fromId) \n"
+            + "INNER JOIN messages toMessages ON toMessages.id = bridge.toId)"
+            + "WHERE fromMessages.bot = ? AND fromMessages.channel = ? AND fromMessages.message = ?;";
+
+    private static final int INCREMENTAL_VACUUM = 2; // value of PRAGMA auto_vacuum
+
+    private final ConnectionPool database;
+    private final Optional<RetentionTask> retentionTask;
+
+    SqliteMessageStore(ConnectionPool database, Map<String, String> databaseConfig) throws SQLException {
+        this.database = database;
+
+        String messageTableSql = "CREATE TABLE IF NOT EXISTS messages (\n"
+                + "	id integer PRIMARY KEY AUTOINCREMENT,\n"
+                + "	bot varchar(255) NOT NULL,\n"
+                + "	channel varchar(255) NOT NULL,\n"
+                + "	message varchar(36) NOT NULL,\n"
+                + "	created integer NOT NULL DEFAULT (CAST(strftime('%s', 'now') AS integer)),\n"
+                + "	kind integer NOT NULL DEFAULT 0,\n"
+                + " CONSTRAINT UC_message UNIQUE (bot,channel,message)"
+                + ");";
+
+        String bridgeTableSql = "CREATE TABLE IF NOT EXISTS bridge (\n"
+                + "	fromId integer NOT NULL REFERENCES messages(id) ON DELETE CASCADE,\n"
+                + "	toId integer NOT NULL REFERENCES messages(id) ON DELETE CASCADE,\n"
+                + "PRIMARY KEY(fromId, toId)"
+                + ");";
+
+        // The primary key covers the lookups by fromId, the retention deletes also by toId
+        String bridgeIndexSql = "CREATE INDEX IF NOT EXISTS IDX_bridge_toId ON bridge(toId);";
+
+        try (PooledConnection connection = database.writer();
+             Statement createTables = connection.getConnection().createStatement()) {
+            createTables.execute(messageTableSql);
+            createTables.execute(bridgeTableSql);
+            createTables.execute(bridgeIndexSql);
+            SqliteMessageStore.addMissingColumns(createTables);
+            SqliteMessageStore.enableIncrementalVacuum(createTables);
+        }
+
+        this.retentionTask = RetentionTask.fromConfig(database, databaseConfig);
+    }
+
+    /**
+     * Adds the columns to a messages table created before them: the old messages get {@link MessageKind#UNKNOWN}
+     * and are considered created now, so the retention keeps them for max-age.
+     */
+    private static void addMissingColumns(Statement statement) throws SQLException {
+        Set<String> columns = new HashSet<>();
+        try (ResultSet tableInfo = statement.executeQuery("PRAGMA table_info(messages);")) {
+            while (tableInfo.next())
+                columns.add(tableInfo.getString("name"));
+        }
+
+        if (!columns.contains("kind"))
+            statement.execute("ALTER TABLE messages ADD COLUMN kind integer NOT NULL DEFAULT 0;");
+        if (!columns.contains("created")) {
+            statement.execute("ALTER TABLE messages ADD COLUMN created integer NOT NULL DEFAULT 0;");
+            statement.execute("UPDATE messages SET created = CAST(strftime('%s', 'now') AS integer);");
+        }
+    }
+
+    /**
+     * auto_vacuum applies only to a new database: an old one is rebuilt once, so the retention can give back
+     * the space it frees. It can take a while on a big database.
+     */
+    private static void enableIncrementalVacuum(Statement statement) throws SQLException {
+        try (ResultSet autoVacuum = statement.executeQuery("PRAGMA auto_vacuum;")) {
+            if (!autoVacuum.next() || INCREMENTAL_VACUUM == autoVacuum.getInt(1))
+                return;
+        }
+
+        System.out.println("Rebuilding the messages database to enable the incremental vacuum.");
+        statement.execute("PRAGMA auto_vacuum=INCREMENTAL;");
+        statement.execute("VACUUM;");
+    }
+
+    /**
+     * Inserts the messages as a single batch.
+     *
+     * @return the generated ids, in the same order of the messages
+     */
+    private static int[] insertMessages(PooledConnection connection,
+                                        List<Quartet<String, String, String, MessageKind>> messages) throws SQLException {
+        PreparedStatement insertMessage = connection.prepareReturningKeys(INSERT_MESSAGE_SQL);
+        for (Quartet<String, String, String, MessageKind> message : messages) {
+            insertMessage.setString(1, message.getValue0());
+            insertMessage.setString(2, message.getValue1());
+            insertMessage.setString(3, message.getValue2());
+            insertMessage.setInt(4, message.getValue3().ordinal());
+            insertMessage.addBatch();
+        }
+        insertMessage.executeBatch();
+
+        int[] ids = new int[messages.size()];
+        int n = 0;
+        try (ResultSet rs = insertMessage.getGeneratedKeys()) {
+            while (rs.next() && n < ids.length)
+                ids[n++] = rs.getInt(1);
+        }
+
+        // Some drivers (e.g. SQLite) return only the last id of a batch.
+        // Inside a transaction the AUTOINCREMENT ids of a batch are consecutive.
+        if (1 == n && 1 < ids.length) {
+            int lastId = ids[0];
+            for (int i = 0; i < ids.length; i++)
+                ids[i] = lastId - ids.length + 1 + i;
+        } else if (n != ids.length)
+            throw new SQLException("Generated ids not returned by the driver");
+
+        return ids;
+    }
+
+    /**
+     * @param offsets index in ids of the source message of each history
+     */
+    private static void insertBridges(PooledConnection connection, int[] ids, int[] offsets) throws SQLException {
+        PreparedStatement insertBridge = connection.prepare(INSERT_BRIDGE_SQL);
+        for (int history = 0; history < offsets.length; history++) {
+            int from = offsets[history];
+            int end = history + 1 < offsets.length ? offsets[history + 1] : ids.length;
+            for (int i = from + 1; i < end; i++) {
+                insertBridge.setInt(1, ids[from]);
+                insertBridge.setInt(2, ids[i]);
+                insertBridge.addBatch();
+            }
+        }
+        insertBridge.executeBatch();
+    }
+
+    /**
+     * Saves the histories in a single transaction.
+     *
+     * @return false if the transaction has been rolled back
+     */
+    @Override
+    public boolean saveHistories(Collection<List<Quartet<String, String, String, MessageKind>>> histories) {
+        List<Quartet<String, String, String, MessageKind>> messages = new ArrayList<>();
+        int[] offsets = new int[histories.size()];
+        int history = 0;
+        for (List<Quartet<String, String, String, MessageKind>> historyMessages : histories) {
+            offsets[history++] = messages.size();
+            messages.addAll(historyMessages);
+        }
+
+        try (PooledConnection connection = this.database.writer()) {
+            Connection writer = connection.getConnection();
+            boolean autoCommit = writer.getAutoCommit();
+            writer.setAutoCommit(false);
+            try {
+                insertBridges(connection, insertMessages(connection, messages), offsets);
+                writer.commit();
+            } catch (SQLException e) {
+                writer.rollback();
+                throw e;
+            } finally {
+                connection.prepareReturningKeys(INSERT_MESSAGE_SQL).clearBatch();
+                connection.prepare(INSERT_BRIDGE_SQL).clearBatch();
+                writer.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public Map<Pair<String, String>, Pair<String, MessageKind>> getChildMessages(String botIdFrom,
+                                                                                 String channelIdFrom,
+                                                                                 String messageIdFrom) {
+        // UC_message and the primary key of bridge are indexes for both sides of the join
+        Map<Pair<String, String>, Pair<String, MessageKind>> output = new HashMap<>();
+        try (PooledConnection connection = this.database.reader()) {
+            PreparedStatement pstmt = connection.prepare(CHILD_MESSAGES_SQL);
+            pstmt.setString(1, botIdFrom);
+            pstmt.setString(2, channelIdFrom);
+            pstmt.setString(3, messageIdFrom);
+
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next())
+                    output.put(Pair.with(rs.getString("bot"), rs.getString("channel")),
+                            Pair.with(rs.getString("message"), MessageKind.fromOrdinal(rs.getInt("kind"))));
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+
+        return output;
+    }
+
+    @Override
+    public long getReclaimedRows() {
+        return this.retentionTask.map(RetentionTask::getReclaimedRows).orElse(0L);
+    }
+
+    @Override
+    public void clean() {
+        String deleteBridge = "DROP TABLE bridge;";
+        String deleteMessages = "DROP TABLE messages;";
+        try (PooledConnection connection = this.database.writer();
+             Statement createTables = connection.getConnection().createStatement()) {
+            createTables.execute(deleteBridge);
+            createTables.execute(deleteMessages);
+        } catch (SQLException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        this.retentionTask.ifPresent(RetentionTask::shutdown);
+        try {
+            this.database.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
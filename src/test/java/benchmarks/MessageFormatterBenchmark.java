@@ -0,0 +1,61 @@
+package benchmarks;
+
+import core.PrefixTemplate;
+
+import java.util.Optional;
+
+/**
+ * Compares the formatting of the forwarded messages: String.format, the compiled template and its cached prefixes.
+ * Every message is formatted once for each destination, as the bridges do.
+ * Usage: MessageFormatterBenchmark [messages] [authors] [destinations]
+ */
+public final class MessageFormatterBenchmark {
+    private static final int DEFAULT_MESSAGES = 1000000;
+    private static final int DEFAULT_AUTHORS = 50;
+    private static final int DEFAULT_DESTINATIONS = 10;
+    private static final String TEXT = "Hello, how are you?";
+
+    private MessageFormatterBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        int messages = 0 < args.length ? Integer.parseInt(args[0]) : DEFAULT_MESSAGES;
+        int authors = 1 < args.length ? Integer.parseInt(args[1]) : DEFAULT_AUTHORS;
+        int destinations = 2 < args.length ? Integer.parseInt(args[2]) : DEFAULT_DESTINATIONS;
+
+        String[] nicknames = new String[authors];
+        for (int i = 0; i < authors; i++)
+            nicknames[i] = "nickname" + i;
+        PrefixTemplate template = PrefixTemplate.compile("{bot}/{channel}/{nick}");
+
+        // Twice: the first round warms up the JIT
+        for (int round = 0; round < 2; round++) {
+            MessageFormatterBenchmark.run("String.format", messages, destinations, nicknames,
+                    nickname -> String.format("%s/%s/%s: %s", "tbot", "-100123456", nickname, TEXT));
+            MessageFormatterBenchmark.run("compiled", messages, destinations, nicknames,
+                    nickname -> template.format("tbot", "-100123456", nickname, Optional.empty()) + ": " + TEXT);
+            MessageFormatterBenchmark.run("cached", messages, destinations, nicknames,
+                    nickname -> template.format("tbot", "-100123456", nickname, Optional.of(TEXT)));
+        }
+    }
+
+    private static void run(String name, int messages, int destinations, String[] nicknames,
+                            Formatter formatter) {
+        long length = 0;
+        long start = System.nanoTime();
+        for (int n = 0; n < messages; n++) {
+            String nickname = nicknames[n % nicknames.length];
+            for (int destination = 0; destination < destinations; destination++)
+                length += formatter.format(nickname).length();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println(String.format("%s: %.1f ns per message and destination (%d chars)", name,
+                (double) elapsed / ((long) messages * destinations), length));
+    }
+
+    @FunctionalInterface
+    private interface Formatter {
+        String format(String nickname);
+    }
+}
@@ -0,0 +1,95 @@
+package benchmarks;
+
+import models.MessageKind;
+import models.MessageStore;
+import org.javatuples.Quartet;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Compares the message stores: write throughput of the histories and latency of the lookups done by the edits.
+ * Usage: MessageStoreBenchmark [histories] [destinations] [batch size] [lookups]
+ */
+public final class MessageStoreBenchmark {
+    private static final int DEFAULT_HISTORIES = 100000;
+    private static final int DEFAULT_DESTINATIONS = 2;
+    private static final int DEFAULT_BATCH_SIZE = 100;
+    private static final int DEFAULT_LOOKUPS = 100000;
+
+    private MessageStoreBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException, SQLException {
+        int histories = 0 < args.length ? Integer.parseInt(args[0]) : DEFAULT_HISTORIES;
+        int destinations = 1 < args.length ? Integer.parseInt(args[1]) : DEFAULT_DESTINATIONS;
+        int batchSize = 2 < args.length ? Integer.parseInt(args[2]) : DEFAULT_BATCH_SIZE;
+        int lookups = 3 < args.length ? Integer.parseInt(args[3]) : DEFAULT_LOOKUPS;
+
+        Path directory = Files.createTempDirectory("brooklyn-benchmark");
+
+        Map<String, String> sqliteConfig = new HashMap<>();
+        sqliteConfig.put(MessageStore.STORE_KEY, MessageStore.SQLITE_STORE);
+        MessageStoreBenchmark.run(MessageStore.SQLITE_STORE,
+                MessageStore.fromConfig("jdbc:sqlite:" + directory.resolve("messages.sqlite"), sqliteConfig),
+                histories, destinations, batchSize, lookups);
+
+        Map<String, String> mappedConfig = new HashMap<>();
+        mappedConfig.put(MessageStore.STORE_KEY, MessageStore.MAPPED_STORE);
+        mappedConfig.put("store-path", directory.resolve("messages.log").toString());
+        MessageStoreBenchmark.run(MessageStore.MAPPED_STORE, MessageStore.fromConfig("", mappedConfig),
+                histories, destinations, batchSize, lookups);
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files)
+                Files.delete(file);
+        }
+        Files.delete(directory);
+    }
+
+    private static List<Quartet<String, String, String, MessageKind>> history(int n, int destinations) {
+        List<Quartet<String, String, String, MessageKind>> history = new ArrayList<>(destinations + 1);
+        history.add(Quartet.with("tbot", "-100123456", Integer.toString(n), MessageKind.UNKNOWN));
+        for (int i = 0; i < destinations; i++)
+            history.add(Quartet.with("ibot" + i, "#channel" + i, UUID.randomUUID().toString(), MessageKind.TEXT));
+
+        return history;
+    }
+
+    private static void run(String name, MessageStore store, int histories, int destinations,
+                            int batchSize, int lookups) {
+        List<List<Quartet<String, String, String, MessageKind>>> batch = new ArrayList<>(batchSize);
+        long start = System.nanoTime();
+        for (int n = 0; n < histories; n++) {
+            batch.add(MessageStoreBenchmark.history(n, destinations));
+            if (batch.size() == batchSize || n == histories - 1) {
+                store.saveHistories(batch);
+                batch.clear();
+            }
+        }
+        double writeSeconds = (System.nanoTime() - start) / 1e9;
+
+        Random random = new Random(42);
+        long[] latencies = new long[lookups];
+        int found = 0;
+        for (int i = 0; i < lookups; i++) {
+            String messageId = Integer.toString(random.nextInt(histories));
+            long lookupStart = System.nanoTime();
+            found += store.getChildMessages("tbot", "-100123456", messageId).size();
+            latencies[i] = System.nanoTime() - lookupStart;
+        }
+        Arrays.sort(latencies);
+
+        System.out.println(String.format("%s: %.0f histories/s written, lookups p50 %.1f us, p99 %.1f us, max %.1f us"
+                        + " (%d messages found)", name, histories / writeSeconds,
+                latencies[lookups / 2] / 1e3, latencies[lookups * 99 / 100] / 1e3, latencies[lookups - 1] / 1e3,
+                found));
+
+        store.clean();
+        store.close();
+    }
+}